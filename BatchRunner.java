@@ -0,0 +1,135 @@
+// Solve many trades in one JVM
+//
+// Started by "TradeMaximizer --batch [--threads=N] [--output-dir=DIR]
+// inputs...", where each input is a want-list file or a directory of them.
+// Every trade gets its own TradeMaximizer (and therefore its own Graph), so
+// the trades share nothing but the thread pool. The report for foo.txt is
+// written to foo.txt.out, either next to the input or in the output
+// directory. A trade that fails is reported and the others carry on.
+//
+// The other command-line settings (--cache, --no-verify, --reorder,
+// --compact, --no-preflight, --strict-preflight, --capacity-report and
+// --workers, with their companions) apply to every trade in the batch. Each
+// trade gets its own ResultCache over the shared directory, so that its
+// report shows what happened to that trade.
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class BatchRunner {
+
+  static final String REPORT_SUFFIX = ".out";
+
+  private TradeMaximizer settings; // holds the parsed command line
+  private List<File> inputs;
+  private File outputDir; // null means next to each input
+  private int threads;
+
+  BatchRunner(TradeMaximizer settings) {
+    this.settings = settings;
+    this.inputs = settings.batchInputs;
+    this.outputDir = settings.outputDir;
+    this.threads = settings.threads;
+  }
+
+  // Solve every trade and print one status line per trade. Returns the exit
+  // status for the whole batch: 0 if every trade was solved, 1 otherwise.
+  int run() {
+    List<File> files = new ArrayList<File>();
+    for (File input : inputs) {
+      if (input.isDirectory()) {
+        File[] children = input.listFiles();
+        Arrays.sort(children);
+        for (File child : children) {
+          String name = child.getName();
+          if (child.isFile() && !name.startsWith(".") && !name.endsWith(REPORT_SUFFIX))
+            files.add(child);
+        }
+      }
+      else files.add(input);
+    }
+    if (outputDir != null) outputDir.mkdirs();
+
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(files.size(), 1)));
+    List< Future<String> > results = new ArrayList< Future<String> >();
+    for (final File file : files) {
+      results.add(pool.submit(new Callable<String>() {
+        public String call() { return solve(file); }
+      }));
+    }
+    pool.shutdown();
+
+    int failures = 0;
+    for (int i = 0; i < files.size(); i++) {
+      String error;
+      try {
+        error = results.get(i).get();
+      }
+      catch (Exception e) {
+        error = e.toString();
+      }
+      if (error == null)
+        System.out.println("ok     " + files.get(i));
+      else {
+        System.out.println("FAILED " + files.get(i) + ": " + error);
+        failures++;
+      }
+    }
+    System.out.println(files.size()-failures + " of " + files.size() + " trades solved");
+    return failures == 0 ? 0 : 1;
+  }
+
+  // Solve a single trade, returning null on success or else a description
+  // of what went wrong
+  String solve(File file) {
+    File dir = outputDir != null ? outputDir : file.getAbsoluteFile().getParentFile();
+    File report = new File(dir, file.getName() + REPORT_SUFFIX);
+
+    InputStream in = null;
+    PrintStream out = null;
+    try {
+      in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+      out = new PrintStream(new BufferedOutputStream(new FileOutputStream(report), 1 << 16), false);
+      TradeMaximizer tm = new TradeMaximizer();
+      tm.input = in;
+      tm.out = out;
+      tm.threads = 1; // the batch is already spread over the threads
+      copySettings(tm);
+      tm.run();
+      if (out.checkError()) return "error writing " + report;
+      return null;
+    }
+    catch (TradeMaximizer.FatalError e) {
+      return e.getMessage();
+    }
+    catch (Exception e) {
+      return e.toString();
+    }
+    catch (OutOfMemoryError e) {
+      return "out of memory";
+    }
+    finally {
+      try {
+        if (in != null) in.close();
+      }
+      catch (IOException e) {}
+      if (out != null) out.close();
+    }
+  }
+
+  // Give tm the command-line settings that apply to each trade
+  void copySettings(TradeMaximizer tm) {
+    if (settings.cacheDir != null && !settings.noCache)
+      tm.cache = new ResultCache(settings.cacheDir,settings.cacheSize);
+    tm.verify = settings.verify;
+    tm.reorder = settings.reorder;
+    tm.compact = settings.compact;
+    tm.preflight = settings.preflight;
+    tm.strictPreflight = settings.strictPreflight;
+    tm.capacityReport = settings.capacityReport;
+    tm.workers = settings.workers;
+    tm.workerJvmOptions = settings.workerJvmOptions;
+  }
+
+} // end BatchRunner
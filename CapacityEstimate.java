@@ -0,0 +1,89 @@
+// Pre-flight estimate of the memory and time a trade needs
+//
+// Right after the want lists are read, and before any of the graph is
+// built, TradeMaximizer counts the items and wants and predicts the peak heap
+// use and the solve time from the constants below. If the prediction does not
+// fit comfortably in the JVM's maximum heap, the trade is built in compact
+// mode instead, which drops each parsed want list as soon as its edges exist
+// and the graph's edge lists once they have been turned into arrays. If even
+// that is predicted not to fit, the run is still tried in compact mode with a
+// warning, since the prediction is only an estimate; --strict-preflight
+// refuses such a run instead, before any time is wasted on it.
+//
+// The constants were measured on generated trades (with compressed object
+// pointers, the default for heaps below 32GB):
+//   - each item costs about 340 bytes of graph: two vertices, their edge
+//     lists and its symbol table entry
+//   - each edge costs about 52 bytes: the edge and four references to it
+//   - each token of the parsed want lists costs about 50 bytes as a String
+//   - each Dijkstra round costs about 45ns per edge, and there is one round
+//     per item in every iteration
+// With --capacity-report, the estimate and the actual figures are printed at
+// the end of the report, so the constants can be recalibrated over time.
+
+import java.lang.management.*;
+import java.text.*;
+import java.util.*;
+
+public class CapacityEstimate {
+
+  static final long BYTES_PER_ITEM = 340;
+  static final long BYTES_PER_EDGE = 52;
+  static final long BYTES_PER_TOKEN = 50;
+  static final long BYTES_BASE = 4L << 20; // the JVM and the program itself
+  static final double NANOS_PER_ROUND_EDGE = 45;
+
+  // Refuse or switch to compact mode beyond this fraction of the max heap
+  static final double HEAP_FRACTION = 0.8;
+
+  long items;
+  long edges;  // wants plus one no-trade edge per item
+  long tokens; // strings in the parsed want lists
+  int iterations;
+
+  // Count the parsed want lists, before buildGraph() changes them
+  CapacityEstimate(List< String[] > wantLists,int iterations) {
+    this.iterations = iterations;
+    for (String[] list : wantLists) {
+      items++;
+      tokens += list.length;
+      // every token after the item name is a want (or a semicolon), and the
+      // name itself stands for the no-trade edge
+      edges += list[0].charAt(0) == '(' ? list.length-1 : list.length;
+    }
+  }
+
+  // Predicted peak heap use in bytes. In normal mode the parsed want lists
+  // are all still alive when the graph is complete; in compact mode they are
+  // gone by then.
+  long peakBytes(boolean compact) {
+    long bytes = BYTES_BASE + items*BYTES_PER_ITEM + edges*BYTES_PER_EDGE;
+    if (!compact) bytes += tokens*BYTES_PER_TOKEN;
+    return bytes;
+  }
+
+  long solveMillis() {
+    return (long)(NANOS_PER_ROUND_EDGE * items * edges * Math.max(iterations, 1) / 1e6);
+  }
+
+  static long maxHeap() {
+    return Runtime.getRuntime().maxMemory();
+  }
+
+  // The highest heap use seen so far in this JVM
+  static long peakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+      if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+    return peak;
+  }
+
+  static String megabytes(long bytes) {
+    return new DecimalFormat("0.0").format(bytes / (double)(1 << 20)) + "MB";
+  }
+
+  static String seconds(long millis) {
+    return new DecimalFormat("0.0").format(millis / 1000.0) + "s";
+  }
+
+} // end CapacityEstimate
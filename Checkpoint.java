@@ -0,0 +1,94 @@
+// Checkpoint files for long ITERATIONS runs
+//
+// A checkpoint records just enough to continue an interrupted run: a hash of
+// the input it was made from, the seed of the shuffle generator, the number
+// of iterations already performed, and the best matching found so far
+// (together with its sum of squares and the receiver order its loops are
+// listed in), along with the progress lines and solver statistics shown so
+// far, which a resumed run shows again. The shuffle generator's state is not
+// stored directly. Instead, a resumed run replays the recorded number of
+// shuffles, which reproduces both the generator state and the receiver/edge
+// order exactly.
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class Checkpoint {
+
+  static final int MAGIC = 0x544d434b; // "TMCK"
+  static final int VERSION = 3;
+
+  byte[] inputHash;   // digest of the raw input lines
+  long seed;          // seed of the graph's shuffle generator
+  int nextIteration;  // the first iteration that has not been performed yet
+  int bestSumSquares; // sum of squares of the saved (best) matching
+  List<String> progress = new ArrayList<String>(); // progress lines shown so far
+  String reductionStats, fixingStats; // the graph's statistics so far (or null)
+
+  // Write the checkpoint, including the graph's saved matching, to file.
+  // The data is written to a temporary file first and then moved into place,
+  // so an interrupted write never destroys the previous checkpoint.
+  void write(File file,Graph graph) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(inputHash.length);
+      out.write(inputHash);
+      out.writeLong(seed);
+      out.writeInt(nextIteration);
+      out.writeInt(bestSumSquares);
+      graph.writeSavedMatches(out);
+      out.writeInt(progress.size());
+      for (String line : progress) out.writeUTF(line);
+      for (String stats : new String[] { reductionStats, fixingStats }) {
+        out.writeBoolean(stats != null);
+        if (stats != null) out.writeUTF(stats);
+      }
+    }
+    finally {
+      out.close();
+    }
+    try {
+      Files.move(tmp.toPath(), file.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  // Read a checkpoint from file and load its matching into the graph's saved
+  // matching. Throws an IOException if the checkpoint was made from a
+  // different input.
+  static Checkpoint read(File file,Graph graph,byte[] inputHash) throws IOException {
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    try {
+      if (in.readInt() != MAGIC)
+        throw new IOException(file + " is not a checkpoint file");
+      if (in.readInt() != VERSION)
+        throw new IOException(file + " was written by an incompatible version");
+      Checkpoint checkpoint = new Checkpoint();
+      checkpoint.inputHash = new byte[in.readInt()];
+      in.readFully(checkpoint.inputHash);
+      if (!Arrays.equals(checkpoint.inputHash, inputHash))
+        throw new IOException("Checkpoint " + file + " was made from a different input");
+      checkpoint.seed = in.readLong();
+      checkpoint.nextIteration = in.readInt();
+      checkpoint.bestSumSquares = in.readInt();
+      graph.readSavedMatches(in);
+      for (int count = in.readInt(); count > 0; count--) checkpoint.progress.add(in.readUTF());
+      checkpoint.reductionStats = in.readBoolean() ? in.readUTF() : null;
+      checkpoint.fixingStats = in.readBoolean() ? in.readUTF() : null;
+      return checkpoint;
+    }
+    finally {
+      in.close();
+    }
+  }
+
+} // end Checkpoint
@@ -0,0 +1,266 @@
+// Reading gzip-compressed want files
+//
+// CompressedInput.open() looks at the first bytes of an input and, if they
+// are a gzip header, puts a decompressor in front of it, so want files can be
+// read compressed from standard input or by --batch without going through
+// zcat. Everything downstream sees the same text, so line numbers in error
+// messages, checkpoints and the result cache are unaffected.
+//
+// Ordinary gzip files, including several gzip members concatenated into one
+// file, are decompressed on the reading thread, because the end of a member
+// can only be found by decompressing it. Blocked gzip files (BGZF, as written
+// by "bgzip") record the compressed size of every member in its header, so
+// those are split into members as they are read and the members are
+// decompressed in parallel, then handed to the parser strictly in order.
+//
+// Damaged input, read either way, fails with an IOException whose message
+// starts "Corrupt compressed input (".
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+public class CompressedInput {
+
+  static final int GZIP_MAGIC = 0x8b1f;
+
+  // Return a stream of the decompressed text if in is gzip-compressed, or
+  // else a stream of the unchanged input
+  static InputStream open(InputStream in,int threads) throws IOException {
+    BufferedInputStream buffered = new BufferedInputStream(in, 1 << 16);
+    buffered.mark(BgzfInputStream.HEADER_LENGTH);
+    byte[] header = new byte[BgzfInputStream.HEADER_LENGTH];
+    int length = readFully(buffered, header, 0, header.length);
+    buffered.reset();
+
+    if (length < 2 || ((header[0] & 0xff) | (header[1] & 0xff) << 8) != GZIP_MAGIC)
+      return buffered;
+    if (length == header.length && BgzfInputStream.isBgzfHeader(header) && threads > 1)
+      return new BgzfInputStream(buffered, threads);
+    try {
+      // reads every member in turn
+      return new GzipInputStream(new GZIPInputStream(buffered, 1 << 16));
+    }
+    catch (ZipException e) {
+      throw corrupt(e);
+    }
+    catch (EOFException e) {
+      throw corrupt(e);
+    }
+  }
+
+  // The error reported for damaged input, whichever way it is read
+  static IOException corrupt(IOException e) {
+    String reason = e.getMessage() != null ? e.getMessage() : "unexpected end of input";
+    return new IOException("Corrupt compressed input (" + reason + ")");
+  }
+
+  // Read up to length bytes, stopping early only at the end of the input
+  static int readFully(InputStream in,byte[] buffer,int offset,int length) throws IOException {
+    int total = 0;
+    while (total < length) {
+      int n = in.read(buffer, offset+total, length-total);
+      if (n < 0) break;
+      total += n;
+    }
+    return total;
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  // Reports the failures of a GZIPInputStream on damaged input the same way
+  // as BgzfInputStream does, instead of as bare ZipExceptions and
+  // EOFExceptions
+  static class GzipInputStream extends FilterInputStream {
+
+    GzipInputStream(GZIPInputStream in) {
+      super(in);
+    }
+
+    public int read() throws IOException {
+      try {
+        return in.read();
+      }
+      catch (ZipException e) {
+        throw corrupt(e);
+      }
+      catch (EOFException e) {
+        throw corrupt(e);
+      }
+    }
+
+    public int read(byte[] buffer,int offset,int length) throws IOException {
+      try {
+        return in.read(buffer, offset, length);
+      }
+      catch (ZipException e) {
+        throw corrupt(e);
+      }
+      catch (EOFException e) {
+        throw corrupt(e);
+      }
+    }
+
+    public long skip(long n) throws IOException {
+      try {
+        return in.skip(n);
+      }
+      catch (ZipException e) {
+        throw corrupt(e);
+      }
+      catch (EOFException e) {
+        throw corrupt(e);
+      }
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  // Decompresses the members of a BGZF file on a thread pool. At most a
+  // fixed number of members are in flight at once, to bound the memory used.
+  static class BgzfInputStream extends InputStream {
+
+    // ID1 ID2 CM FLG MTIME(4) XFL OS XLEN(2), then the BC subfield
+    // SI1 SI2 SLEN(2) BSIZE(2), where BSIZE is the member size minus one
+    static final int HEADER_LENGTH = 18;
+
+    private InputStream in;
+    private ExecutorService pool;
+    private ArrayDeque< Future<byte[]> > pending = new ArrayDeque< Future<byte[]> >();
+    private int inFlight;
+    private boolean endOfInput = false;
+    private byte[] current = new byte[0];
+    private int position = 0;
+
+    BgzfInputStream(InputStream in,int threads) {
+      this.in = in;
+      this.inFlight = 4*threads;
+      this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "bgzf-inflater");
+          thread.setDaemon(true); // never keep the JVM alive
+          return thread;
+        }
+      });
+    }
+
+    static boolean isBgzfHeader(byte[] h) {
+      return (h[0] & 0xff) == 0x1f && (h[1] & 0xff) == 0x8b && h[2] == 8
+          && (h[3] & 0x04) != 0                   // FEXTRA
+          && h[10] == 6 && h[11] == 0             // XLEN = 6
+          && h[12] == 'B' && h[13] == 'C' && h[14] == 2 && h[15] == 0;
+    }
+
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    public int read(byte[] buffer,int offset,int length) throws IOException {
+      if (length == 0) return 0;
+      while (position == current.length) {
+        if (!nextMember()) return -1;
+      }
+      int n = Math.min(length, current.length - position);
+      System.arraycopy(current, position, buffer, offset, n);
+      position += n;
+      return n;
+    }
+
+    // Move on to the next decompressed member, keeping the pool busy.
+    // Returns false at the end of the input.
+    private boolean nextMember() throws IOException {
+      while (!endOfInput && pending.size() < inFlight) {
+        final byte[] member = readMember();
+        if (member == null) {
+          endOfInput = true;
+          break;
+        }
+        pending.add(pool.submit(new Callable<byte[]>() {
+          public byte[] call() throws IOException { return inflate(member); }
+        }));
+      }
+      if (pending.isEmpty()) {
+        close();
+        return false;
+      }
+      try {
+        current = pending.poll().get();
+      }
+      catch (ExecutionException e) {
+        close();
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) throw (IOException) cause;
+        throw new IOException(cause.toString());
+      }
+      catch (InterruptedException e) {
+        close();
+        throw new InterruptedIOException("interrupted while decompressing");
+      }
+      position = 0;
+      return true;
+    }
+
+    // Read the raw bytes of the next member, or return null at the end
+    private byte[] readMember() throws IOException {
+      byte[] header = new byte[HEADER_LENGTH];
+      int length = readFully(in, header, 0, HEADER_LENGTH);
+      if (length == 0) return null;
+      if (length < HEADER_LENGTH || !isBgzfHeader(header))
+        throw new IOException("Corrupt compressed input (bad BGZF block header)");
+      int size = ((header[16] & 0xff) | (header[17] & 0xff) << 8) + 1;
+      if (size < HEADER_LENGTH + 8)
+        throw new IOException("Corrupt compressed input (bad BGZF block size)");
+      byte[] member = Arrays.copyOf(header, size);
+      if (readFully(in, member, HEADER_LENGTH, size - HEADER_LENGTH) != size - HEADER_LENGTH)
+        throw new IOException("Corrupt compressed input (truncated BGZF block)");
+      return member;
+    }
+
+    // Decompress one member and check it against its CRC and length
+    static byte[] inflate(byte[] member) throws IOException {
+      int end = member.length - 8;
+      int crc = readInt(member, end);
+      int size = readInt(member, end + 4);
+      if (size < 0 || size > 1 << 16) // BGZF blocks hold at most 64KB
+        throw new IOException("Corrupt compressed input (bad BGZF block length)");
+      // One spare byte lets the inflater reach the end of the data (even of
+      // an empty member) and shows up any excess
+      byte[] data = new byte[size+1];
+      Inflater inflater = new Inflater(true); // raw deflate data
+      try {
+        inflater.setInput(member, HEADER_LENGTH, end - HEADER_LENGTH);
+        int n = 0;
+        while (n < data.length && !inflater.finished()) {
+          int got = inflater.inflate(data, n, data.length - n);
+          if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+          n += got;
+        }
+        if (n != size || !inflater.finished())
+          throw new IOException("Corrupt compressed input (BGZF block length mismatch)");
+      }
+      catch (DataFormatException e) {
+        throw new IOException("Corrupt compressed input (" + e.getMessage() + ")");
+      }
+      finally {
+        inflater.end();
+      }
+      CRC32 check = new CRC32();
+      check.update(data, 0, size);
+      if ((int)check.getValue() != crc)
+        throw new IOException("Corrupt compressed input (BGZF block CRC mismatch)");
+      return Arrays.copyOf(data, size);
+    }
+
+    private static int readInt(byte[] b,int i) {
+      return (b[i] & 0xff) | (b[i+1] & 0xff) << 8 | (b[i+2] & 0xff) << 16 | (b[i+3] & 0xff) << 24;
+    }
+
+    public void close() throws IOException {
+      pool.shutdownNow();
+      in.close();
+    }
+  }
+
+} // end CompressedInput
@@ -0,0 +1,478 @@
+// Performance and correctness check over a corpus of want files
+//
+//     java CorpusRunner [options] [corpus-dir]
+//
+// Every want file (*.txt) in the corpus directory (default "corpus") is run
+// through the full TradeMaximizer pipeline in this JVM. The summary of each
+// report (number of trades, total cost, group sizes and sum of squares) is
+// compared with the golden summary stored next to it in NAME.golden, so a
+// change that alters the trades is caught even if it is faster. Corpus files
+// should use a fixed SEED whenever they ask for ITERATIONS. Besides small
+// trades that cover the options, the corpus holds a generated trade of
+// 20000 items, so that a change in how the solver scales shows up in the
+// timings and is not lost in the jitter of the small ones.
+//
+// For each file the time spent in every phase of TradeMaximizer.run(), the
+// peak heap and the bytes allocated are written to a results file, as tab
+// separated columns with a header line. Times are the median of several runs,
+// after a warm-up run. Given the results file of an earlier version as a
+// baseline, every trade that got slower or allocated more than the threshold
+// allows is reported as a regression. Differences of less than
+// NOISE_PERCENT of the baseline time never count.
+//
+// Each file is also run once with --checkpoint and then once more with
+// --resume from the checkpoint that run left behind. The two reports must be
+// identical apart from the line saying that the run is resumed. Likewise, a
+// run that finds its result in a --cache must print exactly the report of
+// the run that stored it, and so must a run that finds the result stored by
+// a --batch run with the same --cache, which shows that --batch passes the
+// command-line settings on to each trade. Finally, gzip-compressed copies
+// of the file that are cut short or fail their checksum must be rejected as corrupt
+// compressed input when read on a single thread.
+//
+// Options:
+//   --update           write the golden summaries instead of checking them
+//   --runs=N           time each file N times (default 3)
+//   --results=FILE     where to write the results (default corpus-results.tsv)
+//   --baseline=FILE    results of an earlier version to compare against
+//   --threshold=PCT    allowed slowdown or extra allocation (default 20)
+//
+// The exit status is 0 if every summary matched and nothing regressed.
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.zip.*;
+
+public class CorpusRunner {
+
+  static final String GOLDEN_SUFFIX = ".golden";
+  static final String[] SUMMARY_PREFIXES = {
+    "Num trades", "Total cost", "Group sizes", "Sum squares"
+  };
+  static final String[] PHASES = { "parse", "build", "prune", "solve", "report" };
+  // Time differences below this share of the baseline time are put down to
+  // jitter and ignored, however low --threshold is set
+  static final int NOISE_PERCENT = 10;
+
+  File corpus = new File("corpus");
+  File resultsFile = new File("corpus-results.tsv");
+  File baselineFile = null;
+  boolean update = false;
+  int runs = 3;
+  int threshold = 20; // percent
+
+  // What was measured for one want file
+  static class Result {
+    String name;
+    long[] phaseMillis = new long[PHASES.length];
+    long totalMillis;
+    long peakHeapKB = -1;
+    long allocatedKB = -1;
+  }
+
+  public static void main(String[] args) {
+    CorpusRunner runner = new CorpusRunner();
+    for (String arg : args) {
+      if (arg.equals("--update")) runner.update = true;
+      else if (arg.startsWith("--runs=")) runner.runs = Integer.parseInt(arg.substring(7));
+      else if (arg.startsWith("--results=")) runner.resultsFile = new File(arg.substring(10));
+      else if (arg.startsWith("--baseline=")) runner.baselineFile = new File(arg.substring(11));
+      else if (arg.startsWith("--threshold=")) runner.threshold = Integer.parseInt(arg.substring(12));
+      else if (arg.startsWith("--")) {
+        System.err.println("Unknown option " + arg);
+        System.exit(2);
+      }
+      else runner.corpus = new File(arg);
+    }
+    System.exit(runner.run());
+  }
+
+  int run() {
+    File[] files = corpus.listFiles(new FilenameFilter() {
+      public boolean accept(File dir,String name) { return name.endsWith(".txt"); }
+    });
+    if (files == null || files.length == 0) {
+      System.err.println("No want files (*.txt) in " + corpus);
+      return 2;
+    }
+    Arrays.sort(files);
+
+    int failures = 0;
+    List<Result> results = new ArrayList<Result>();
+    for (File file : files) {
+      try {
+        Result result = new Result();
+        result.name = file.getName();
+        String summary = measure(file, result);
+        File golden = new File(corpus, result.name + GOLDEN_SUFFIX);
+        if (update) {
+          write(golden, summary);
+          System.out.println("updated   " + result.name);
+        }
+        else if (!golden.exists()) {
+          System.out.println("NO GOLDEN " + result.name);
+          failures++;
+        }
+        else if (!summary.equals(read(golden))) {
+          System.out.println("MISMATCH  " + result.name);
+          System.out.print(indent("expected: ", read(golden)));
+          System.out.print(indent("got:      ", summary));
+          failures++;
+        }
+        else System.out.println("ok        " + result.name + "  " + result.totalMillis + "ms");
+        results.add(result);
+        if (!update) {
+          String difference = checkResume(file);
+          if (difference != null) {
+            System.out.println("RESUME    " + result.name + ": " + difference);
+            failures++;
+          }
+          difference = checkCache(file);
+          if (difference != null) {
+            System.out.println("CACHE     " + result.name + ": " + difference);
+            failures++;
+          }
+          difference = checkBatch(file);
+          if (difference != null) {
+            System.out.println("BATCH     " + result.name + ": " + difference);
+            failures++;
+          }
+          difference = checkCorrupt(file);
+          if (difference != null) {
+            System.out.println("CORRUPT   " + result.name + ": " + difference);
+            failures++;
+          }
+        }
+      }
+      catch (Exception e) {
+        System.out.println("FAILED    " + file.getName() + ": " + e);
+        failures++;
+      }
+    }
+
+    try {
+      writeResults(results);
+      if (baselineFile != null) failures += compare(results, readResults(baselineFile));
+    }
+    catch (IOException e) {
+      System.out.println("FAILED    results: " + e.getMessage());
+      failures++;
+    }
+    System.out.println(failures == 0 ? "PASSED" : failures + " problem(s)");
+    return failures == 0 ? 0 : 1;
+  }
+
+  // Run one want file runs times (after one untimed run to warm up the JIT),
+  // filling in result with the median times and the figures of the last run.
+  // Returns the summary of the report.
+  String measure(File file,Result result) throws IOException {
+    long[][] phases = new long[PHASES.length][runs];
+    long[] totals = new long[runs];
+    String summary = null;
+    for (int r = -1; r < runs; r++) {
+      System.gc();
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+      long allocatedBefore = allocatedBytes();
+
+      ByteArrayOutputStream report = new ByteArrayOutputStream();
+      TradeMaximizer tm = new TradeMaximizer();
+      InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+      try {
+        tm.input = in;
+        tm.out = new PrintStream(report, false, "UTF-8");
+        tm.threads = 1; // keep all the work (and allocation) on this thread
+        tm.run();
+        tm.out.flush();
+      }
+      finally {
+        in.close();
+      }
+
+      long allocatedAfter = allocatedBytes();
+      if (allocatedBefore >= 0) result.allocatedKB = (allocatedAfter - allocatedBefore) / 1024;
+      long peak = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+      result.peakHeapKB = peak / 1024;
+
+      summary = summarize(report.toString("UTF-8"));
+      if (r < 0) continue; // the warm-up run
+
+      for (int p = 0; p < PHASES.length; p++) {
+        Long nanos = tm.phaseTimes.get(PHASES[p]);
+        phases[p][r] = nanos == null ? 0 : nanos / 1000000;
+        totals[r] += phases[p][r];
+      }
+    }
+    for (int p = 0; p < PHASES.length; p++) result.phaseMillis[p] = median(phases[p]);
+    result.totalMillis = median(totals);
+    return summary;
+  }
+
+  // Run file to the end with a checkpoint, then resume from that checkpoint,
+  // and compare the two reports. Returns the first difference, or null.
+  String checkResume(File file) throws IOException {
+    File checkpoint = File.createTempFile("corpus", ".checkpoint");
+    try {
+      checkpoint.delete(); // the first run starts from scratch
+      String[] full = report(file, "--checkpoint=" + checkpoint).split("\r?\n");
+      String[] resumed = report(file, "--checkpoint=" + checkpoint, "--resume").split("\r?\n");
+      return difference(withoutResuming(full), withoutResuming(resumed));
+    }
+    finally {
+      checkpoint.delete();
+    }
+  }
+
+  // Run file twice with an empty cache, so the second run finds the result of
+  // the first, and compare the two reports. Returns the first difference, or
+  // null.
+  String checkCache(File file) throws IOException {
+    File dir = File.createTempFile("corpus", ".cache");
+    dir.delete();
+    try {
+      String[] stored = report(file, "--cache=" + dir).split("\r?\n");
+      String[] found = report(file, "--cache=" + dir).split("\r?\n");
+      return difference(withoutCacheStats(stored), withoutCacheStats(found));
+    }
+    finally {
+      File[] files = dir.listFiles();
+      if (files != null) for (File f : files) f.delete();
+      dir.delete();
+    }
+  }
+
+  // Solve file as a --batch with a --cache, then run it again outside the
+  // batch, which must find the result the batch stored and print the same
+  // report. Returns the first difference, or null.
+  String checkBatch(File file) throws IOException {
+    File dir = File.createTempFile("corpus", ".batch");
+    dir.delete();
+    File cacheDir = new File(dir, "cache");
+    try {
+      TradeMaximizer settings = new TradeMaximizer();
+      settings.parseArguments(new String[] {
+        "--batch", "--threads=1", "--cache=" + cacheDir, "--output-dir=" + dir, file.getPath()
+      });
+      dir.mkdirs();
+      String error = new BatchRunner(settings).solve(file);
+      if (error != null) return "batch failed: " + error;
+      String[] batched = read(new File(dir, file.getName() + BatchRunner.REPORT_SUFFIX)).split("\r?\n");
+      String[] found = report(file, "--cache=" + cacheDir).split("\r?\n");
+      for (String line : found)
+        if (line.startsWith("Cache ") && !line.startsWith("Cache       = hit"))
+          return "the batch stored nothing in the cache: " + line;
+      return difference(withoutCacheStats(batched), withoutCacheStats(found));
+    }
+    finally {
+      File[] files = cacheDir.listFiles();
+      if (files != null) for (File f : files) f.delete();
+      files = dir.listFiles();
+      if (files != null) for (File f : files) f.delete();
+      dir.delete();
+    }
+  }
+
+  // Compress file with gzip, then read a copy that is cut short and a copy
+  // with a damaged checksum on a single thread. Both must fail as corrupt input.
+  // Returns what went wrong, or null.
+  String checkCorrupt(File file) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+    gzip.write(read(file).getBytes("UTF-8"));
+    gzip.close();
+    byte[] whole = compressed.toByteArray();
+    byte[] truncated = Arrays.copyOf(whole, whole.length/2);
+    byte[] damaged = whole.clone();
+    damaged[whole.length-8] ^= 0x55; // the CRC, so the text itself still parses
+
+    String error = failure(truncated);
+    if (!error.startsWith("Corrupt compressed input ("))
+      return "truncated gzip input gave \"" + error + "\"";
+    error = failure(damaged);
+    if (!error.startsWith("Corrupt compressed input ("))
+      return "damaged gzip input gave \"" + error + "\"";
+    return null;
+  }
+
+  // Run the given input on a single thread and return the fatal error it
+  // stops with
+  static String failure(byte[] input) {
+    TradeMaximizer tm = new TradeMaximizer();
+    tm.input = new ByteArrayInputStream(input);
+    tm.out = new PrintStream(new ByteArrayOutputStream());
+    tm.threads = 1;
+    try {
+      tm.run();
+      return "no error";
+    }
+    catch (TradeMaximizer.FatalError e) {
+      return e.getMessage();
+    }
+  }
+
+  // Run file once with the given command-line arguments and return its report
+  static String report(File file,String... args) throws IOException {
+    ByteArrayOutputStream report = new ByteArrayOutputStream();
+    TradeMaximizer tm = new TradeMaximizer();
+    InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+    try {
+      tm.input = in;
+      tm.out = new PrintStream(report, false, "UTF-8");
+      tm.threads = 1;
+      tm.parseArguments(args);
+      tm.run();
+      tm.out.flush();
+    }
+    finally {
+      in.close();
+    }
+    return report.toString("UTF-8");
+  }
+
+  // The lines of a report, leaving out the resuming line and elapsed time
+  static List<String> withoutResuming(String[] lines) {
+    List<String> kept = new ArrayList<String>();
+    for (String line : lines) {
+      if (line.startsWith("Resuming ") || line.startsWith("Elapsed time")) continue;
+      kept.add(line);
+    }
+    return kept;
+  }
+
+  // The lines of a report, leaving out the cache statistics and elapsed time
+  static List<String> withoutCacheStats(String[] lines) {
+    List<String> kept = new ArrayList<String>();
+    for (String line : lines) {
+      if (line.startsWith("Cache ") || line.startsWith("Elapsed time")) continue;
+      kept.add(line);
+    }
+    return kept;
+  }
+
+  // The first line where two reports differ, or null if they are the same
+  static String difference(List<String> expected,List<String> got) {
+    for (int i = 0; i < Math.max(expected.size(), got.size()); i++) {
+      String a = i < expected.size() ? expected.get(i) : "(end of report)";
+      String b = i < got.size() ? got.get(i) : "(end of report)";
+      if (!a.equals(b)) return "line " + (i+1) + " was \"" + a + "\", now \"" + b + "\"";
+    }
+    return null;
+  }
+
+  // Bytes allocated so far by this thread, or -1 if the JVM cannot tell
+  static long allocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+      if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled())
+        return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  static long median(long[] values) {
+    long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length/2];
+  }
+
+  // The lines of a report that describe the result
+  static String summarize(String report) {
+    StringBuilder summary = new StringBuilder();
+    for (String line : report.split("\r?\n")) {
+      for (String prefix : SUMMARY_PREFIXES)
+        if (line.startsWith(prefix)) summary.append(line).append('\n');
+      if (line.startsWith("FATAL ERROR")) summary.append(line).append('\n');
+    }
+    return summary.toString();
+  }
+
+  static String indent(String label,String text) {
+    StringBuilder result = new StringBuilder();
+    for (String line : text.split("\n")) result.append("    ").append(label).append(line).append('\n');
+    return result.toString();
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  void writeResults(List<Result> results) throws IOException {
+    StringBuilder text = new StringBuilder("file");
+    for (String phase : PHASES) text.append('\t').append(phase).append("_ms");
+    text.append("\ttotal_ms\tpeak_heap_kb\tallocated_kb\n");
+    for (Result result : results) {
+      text.append(result.name);
+      for (long millis : result.phaseMillis) text.append('\t').append(millis);
+      text.append('\t').append(result.totalMillis).append('\t').append(result.peakHeapKB)
+          .append('\t').append(result.allocatedKB).append('\n');
+    }
+    write(resultsFile, text.toString());
+  }
+
+  static Map<String,Result> readResults(File file) throws IOException {
+    Map<String,Result> results = new HashMap<String,Result>();
+    String[] lines = read(file).split("\n");
+    for (int i = 1; i < lines.length; i++) { // skip the header
+      String[] fields = lines[i].split("\t");
+      if (fields.length != PHASES.length + 4) continue;
+      Result result = new Result();
+      result.name = fields[0];
+      for (int p = 0; p < PHASES.length; p++) result.phaseMillis[p] = Long.parseLong(fields[p+1]);
+      result.totalMillis = Long.parseLong(fields[PHASES.length+1]);
+      result.peakHeapKB = Long.parseLong(fields[PHASES.length+2]);
+      result.allocatedKB = Long.parseLong(fields[PHASES.length+3]);
+      results.put(result.name, result);
+    }
+    return results;
+  }
+
+  // Report every trade that is slower, or allocates more, than the baseline
+  // allows. Returns the number of regressions.
+  int compare(List<Result> results,Map<String,Result> baseline) {
+    int regressions = 0;
+    for (Result result : results) {
+      Result old = baseline.get(result.name);
+      if (old == null) continue;
+      long noise = Math.max(1, old.totalMillis * NOISE_PERCENT / 100);
+      if (result.totalMillis - old.totalMillis > noise &&
+          result.totalMillis * 100 > old.totalMillis * (100L + threshold)) {
+        System.out.println("SLOWER    " + result.name + ": " + old.totalMillis + "ms -> "
+                           + result.totalMillis + "ms");
+        regressions++;
+      }
+      if (old.allocatedKB >= 0 && result.allocatedKB >= 0 &&
+          result.allocatedKB * 100 > old.allocatedKB * (100L + threshold)) {
+        System.out.println("ALLOCATES " + result.name + ": " + old.allocatedKB + "KB -> "
+                           + result.allocatedKB + "KB");
+        regressions++;
+      }
+    }
+    return regressions;
+  }
+
+  static String read(File file) throws IOException {
+    Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+    try {
+      StringBuilder text = new StringBuilder();
+      char[] buffer = new char[8192];
+      for (int n; (n = in.read(buffer)) > 0; ) text.append(buffer, 0, n);
+      return text.toString();
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  static void write(File file,String text) throws IOException {
+    Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try {
+      out.write(text);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+} // end CorpusRunner
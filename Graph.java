@@ -1,4 +1,7 @@
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 public class Graph {
 
@@ -9,16 +12,21 @@ public class Graph {
   static enum VertexType { RECEIVER, SENDER }
 
   public static class Vertex {
-    String name;
-    String user;
+    // Names and users are kept as ids in the graph's symbol table; use
+    // Graph.nameOf() and Graph.userOf() to get the text
+    int name;
+    int user; // SymbolTable.NONE if the item has no username
     boolean isDummy;
+    boolean perUser = false; // dummy whose name is qualified by its user
     VertexType type;
+    int id; // position in the receivers list; a sender shares its twin's id
 
-    Vertex(String name, String user, boolean isDummy, VertexType type) {
+    Vertex(int name, int user, boolean isDummy, VertexType type, int id) {
       this.name = name;
       this.user = user;
       this.isDummy = isDummy;
       this.type = type;
+      this.id = id;
     }
 
     // A list of edges (connections) between this vertex (node) and others
@@ -34,19 +42,21 @@ public class Graph {
     Vertex match = null; // the vertex to which this vertex is currently matched
     long matchCost = 0;
     private Vertex from = null; // the node associated with the cheapest path in dijkstra
-    private long price = 0;
+    private int position; // index in RECEIVERS or SENDERS during findCycles()
+    private int slot; // index into the price and distance arrays; see reorder()
     private Heap.Entry heapEntry = null; // contains the current cost (see "from" vertex)
     private int component = 0; // used for removing impossible edges
     boolean used = false; // Note: this variable is (ironically) not used
-
-    Vertex savedMatch = null;
-    long savedMatchCost = 0;
   }
 
   public static class Edge {
     Vertex receiver;
     Vertex sender;
     long cost;
+    // Position of the want in its list, as the number of small steps (wants)
+    // and big steps (semicolons) before it; see TradeMaximizer.buildGraph()
+    int smallSteps;
+    int bigSteps;
 
     Edge(Vertex receiver,Vertex sender,long cost) {
       // Test parameter validity
@@ -63,17 +73,52 @@ public class Graph {
   }
 
   public Vertex getVertex(String name) {
-    return nameMap.get(name); // returns null if name is undefined
+    int symbol = symbols.lookup(name);
+    if (symbol == SymbolTable.NONE || symbol >= byName.length) return null;
+    return byName[symbol]; // null if name is undefined
+  }
+
+  // Find a dummy item declared with addDummyVertex(). Dummy names are only
+  // unique per user, so the user's symbol is part of the key.
+  public Vertex getDummyVertex(String name,int user) {
+    int symbol = symbols.lookup(name);
+    if (symbol == SymbolTable.NONE) return null;
+    return dummies.get(dummyKey(symbol,user));
   }
 
   public Vertex addVertex(String name,String user,boolean isDummy) {
     assert !frozen; // nothing should be added to a graph once it is frozen
     assert getVertex(name) == null; // make sure this name is unique
-    Vertex receiver = new Vertex(name,user,isDummy,VertexType.RECEIVER);
+    int symbol = symbols.intern(name);
+    Vertex receiver = newVertexPair(symbol,user,isDummy);
+    if (symbol >= byName.length) {
+      Vertex[] bigger = new Vertex[Math.max(2*byName.length, symbol+1)];
+      System.arraycopy(byName, 0, bigger, 0, byName.length);
+      byName = bigger;
+    }
+    byName[symbol] = receiver; // add this to the list of used names
+    return receiver;
+  }
+
+  // Add a dummy item, whose name only has to be unique for its user. Its
+  // displayed name is "<name> for user <user>".
+  public Vertex addDummyVertex(String name,String user) {
+    assert !frozen; // nothing should be added to a graph once it is frozen
+    int symbol = symbols.intern(name);
+    Vertex receiver = newVertexPair(symbol,user,true);
+    receiver.perUser = receiver.twin.perUser = true;
+    Vertex old = dummies.put(dummyKey(symbol,receiver.user),receiver);
+    assert old == null; // make sure this name is unique for the user
+    return receiver;
+  }
+
+  private Vertex newVertexPair(int name,String user,boolean isDummy) {
+    int userSymbol = user == null ? SymbolTable.NONE : symbols.intern(user);
+    int id = receivers.size();
+    Vertex receiver = new Vertex(name,userSymbol,isDummy,VertexType.RECEIVER,id);
     receivers.add(receiver);
-    nameMap.put(name,receiver); // add this to the list of used names
 
-    Vertex sender = new Vertex(name+" sender",user,isDummy,VertexType.SENDER);
+    Vertex sender = new Vertex(name,userSymbol,isDummy,VertexType.SENDER,id);
     senders.add(sender);
     receiver.twin = sender;
     sender.twin = receiver;
@@ -81,20 +126,65 @@ public class Graph {
     return receiver;
   }
 
+  // Add an item that has no name, for graphs that are only solved and never
+  // displayed (see ShardedSolver)
+  Vertex addAnonymousVertex(boolean isDummy) {
+    assert !frozen;
+    return newVertexPair(SymbolTable.NONE,null,isDummy);
+  }
+
+  private static Long dummyKey(int name,int user) {
+    return ((long)name << 32) | (user & 0xffffffffL);
+  }
+
+  // The name of a vertex as text. Sender names are only built when asked for.
+  public String nameOf(Vertex v) {
+    String name = symbols.get(v.name);
+    if (v.perUser) name += " for user " + symbols.get(v.user);
+    if (v.type == VertexType.SENDER) name += " sender";
+    return name;
+  }
+
+  // The username of a vertex, or null if it has none
+  public String userOf(Vertex v) {
+    return v.user == SymbolTable.NONE ? null : symbols.get(v.user);
+  }
+
+  // Look up the symbol of a username, or SymbolTable.NONE if it is unknown
+  public int userSymbol(String user) {
+    return user == null ? SymbolTable.NONE : symbols.lookup(user);
+  }
+
   public Edge addEdge(Vertex receiver,Vertex sender,long cost) {
     assert !frozen; // nothing should be added to a graph once it is frozen
 
     // Create an edge (a connection) and add it to both vertices (nodes)
     Edge edge = new Edge(receiver,sender,cost);
+    addEdge(edge);
+    return edge;
+  }
+
+  // Add an edge that was created elsewhere (see TradeMaximizer.resolveWants())
+  void addEdge(Edge edge) {
+    assert !frozen;
+    Vertex receiver = edge.receiver, sender = edge.sender;
+    long cost = edge.cost;
     receiver.edges.add(edge);
     sender.edges.add(edge);
     // Check if the sending vertex (node) now has a lower minimum cost
     // Note: this will be recalculated anew after removing edges
     sender.minimumInCost = Math.min(cost,sender.minimumInCost);
-    return edge;
   }
 
+  // Once the graph is frozen, the edge lists may be gone (in compact mode or
+  // after reorder()), so look in the edge arrays instead
   public Edge getEdge(Vertex receiver,Vertex sender) {
+    if (frozen) {
+      for (Edge edge : receiver.EDGES) {
+        if (edge.sender == sender) return edge;
+      }
+      return null;
+    }
     for (Edge edge : receiver.edges) {
       if (edge.sender == sender) return edge;
     }
@@ -102,6 +192,13 @@ public class Graph {
   }
 
   boolean frozen = false; // the graph is unfrozen and ready for additions by default
+  boolean compact = false; // drop the edge lists when freezing (see CapacityEstimate)
+  private int[] wantCounts; // number of wants of each receiver, once compact or reordered
+
+  // The number of wants that made it into receiver's want list
+  int wantCount(Vertex receiver) {
+    return wantCounts != null ? wantCounts[receiver.id] : receiver.edges.size()-1;
+  }
 
   // The graph can be "frozen" from adding new elements. When we do this,
   // we convert the lists (great for checking/adding things) to arrays
@@ -117,6 +214,16 @@ public class Graph {
     for (Vertex v : RECEIVERS) v.EDGES = v.edges.toArray(tmp);
     for (Vertex v : SENDERS) v.EDGES = v.edges.toArray(tmp);
 
+    // In compact mode the lists go, keeping only the number of wants
+    if (compact) {
+      wantCounts = new int[RECEIVERS.length];
+      for (Vertex v : RECEIVERS) {
+        wantCounts[v.id] = v.edges.size()-1;
+        v.edges = null;
+      }
+      for (Vertex v : SENDERS) v.edges = null;
+    }
+
     frozen = true; // mark the graph as frozen; no more adding may occur
   }
 
@@ -132,18 +239,24 @@ public class Graph {
   // culling unusable edges
   List<Vertex> orphans = new ArrayList<Vertex>();
 
-  // The nameMap helps make sure we don't duplicate vertex names
-  // and lets us find vertices (nodes) by their names
-  private HashMap<String,Vertex> nameMap = new HashMap<String,Vertex>();
+  // All item names and usernames are interned here, and vertices refer to
+  // them by symbol id
+  SymbolTable symbols = new SymbolTable();
+
+  // byName helps make sure we don't duplicate vertex names and lets us find
+  // vertices (nodes) by their names. It is indexed by symbol id; dummy items
+  // qualified by their user are kept separately.
+  private Vertex[] byName = new Vertex[64];
+  private HashMap<Long,Vertex> dummies = new HashMap<Long,Vertex>();
 
   // Note: This function is not called
   void print() {
     assert frozen; // the graph should only be printed when we are done adding things
     for (Vertex v : RECEIVERS) {
-      System.out.print(v.name + " :");
+      System.out.print(nameOf(v) + " :");
       for (Edge e : v.EDGES) {
         if (e.sender != e.receiver.twin)
-          System.out.print(" " + e.sender.name);
+          System.out.print(" " + nameOf(e.sender));
       }
       System.out.println();
     }
@@ -156,30 +269,64 @@ public class Graph {
   // Keep track of which sender vertices have had their receiver twin visited
   private List<Vertex> finished;
 
-  void visitReceivers(Vertex receiver) {
-    assert receiver.type == VertexType.RECEIVER;
+  // The current path of the depth first searches below: the vertices on it
+  // and how many edges of each have been followed so far. The searches keep
+  // their own stack instead of recursing, because on a large trade a long
+  // chain of wants would overflow the thread's stack. They visit the
+  // vertices in the same order as the recursive versions did.
+  private Vertex[] pathVertex;
+  private int[] pathEdge;
+
+  void visitReceivers(Vertex root) {
+    assert root.type == VertexType.RECEIVER;
     // Mark this receiver as visited
-    receiver.mark = timestamp;
-    // Visit all the receivers of this receiver
-    for (Edge edge : receiver.EDGES) {
-      Vertex v = edge.sender.twin;
-      if (v.mark != timestamp) visitReceivers(v);
+    root.mark = timestamp;
+    pathVertex[0] = root;
+    pathEdge[0] = 0;
+    for (int depth = 0; depth >= 0; ) {
+      Vertex receiver = pathVertex[depth];
+      if (pathEdge[depth] < receiver.EDGES.length) {
+        // Visit the next receiver of this receiver
+        Vertex v = receiver.EDGES[pathEdge[depth]++].sender.twin;
+        if (v.mark != timestamp) {
+          v.mark = timestamp;
+          depth++;
+          pathVertex[depth] = v;
+          pathEdge[depth] = 0;
+        }
+      }
+      else {
+        // Add the twin sender vertex (node) to the queue for visitSenders()
+        finished.add(receiver.twin);
+        depth--;
+      }
     }
-    // Add the twin sender vertex (node) to the queue for visitSenders()
-    finished.add(receiver.twin);
   }
-  void visitSenders(Vertex sender) {
-    assert sender.type == VertexType.SENDER;
-    sender.mark = timestamp; // mark this sender as visited
-    // Visit all the senders of this sender
-    for (Edge edge : sender.EDGES) {
-      Vertex v = edge.receiver.twin;
-      if (v.mark != timestamp) visitSenders(v);
+  void visitSenders(Vertex root) {
+    assert root.type == VertexType.SENDER;
+    root.mark = timestamp; // mark this sender as visited
+    pathVertex[0] = root;
+    pathEdge[0] = 0;
+    for (int depth = 0; depth >= 0; ) {
+      Vertex sender = pathVertex[depth];
+      if (pathEdge[depth] < sender.EDGES.length) {
+        // Visit the next sender of this sender
+        Vertex v = sender.EDGES[pathEdge[depth]++].receiver.twin;
+        if (v.mark != timestamp) {
+          v.mark = timestamp;
+          depth++;
+          pathVertex[depth] = v;
+          pathEdge[depth] = 0;
+        }
+      }
+      else {
+        // Mark both this sender and its twin receiver with the current
+        // "component" iteration number, a sort of generational code
+        // to differentiate groups that never want each other.
+        sender.component = sender.twin.component = component;
+        depth--;
+      }
     }
-    // Mark both this sender and its twin receiver with the current
-    // "component" iteration number, a sort of generational code
-    // to differentiate groups that never want each other.
-    sender.component = sender.twin.component = component;
   }
 
   // Traverses edges and removes entries whose sender/receiver pair have
@@ -211,6 +358,8 @@ public class Graph {
     // its default value of zero, which is also the unvisited flag value.
     advanceTimestamp();
     finished = new ArrayList<Vertex>(RECEIVERS.length);
+    pathVertex = new Vertex[receivers.size()]; // room for every vertex
+    pathEdge = new int[receivers.size()];
 
     // We use Kosaraju's algorithm to determine which comopnents are strongly connected.
     // Strongly connected means every vertex is reachable from every other vertex.
@@ -228,6 +377,8 @@ public class Graph {
         visitSenders(v); // visit the next group of senders
       }
     }
+    pathVertex = null;
+    pathEdge = null;
 
     // Now remove all edges between two different component counts
     for (Vertex v : RECEIVERS) {
@@ -249,6 +400,109 @@ public class Graph {
     removeOrphans();
   }
 
+  // Take dummy items out of the graph before solving, wherever that cannot
+  // change which trades are possible or what they cost. Suppose dummy item D
+  // is wanted by receivers A1..Am and itself wants senders X1..Xn. If m or n
+  // is 1, then D can pass on at most one item anyway, so every path Ai->D->Xj
+  // can be replaced by a direct edge Ai->Xj with the cost of Ai->D. (D's own
+  // edges all cost the same as its no-trade edge, so they drop out.) These
+  // are exactly the trades elideDummies() would have produced, with the same
+  // match costs, but the solver never has to route through D. Contracting one
+  // dummy can make another contractible, so we repeat until nothing changes.
+  // Returns the number of dummy items removed.
+  int contractDummies() {
+    assert frozen;
+    boolean[] gone = new boolean[receivers.size()];
+    int contracted = 0;
+    for (boolean changed = true; changed; ) {
+      changed = false;
+      for (Vertex d : RECEIVERS) {
+        if (!d.isDummy || gone[d.id]) continue;
+        List<Edge> outs = new ArrayList<Edge>();
+        for (Edge e : d.EDGES)
+          if (e.sender != d.twin) outs.add(e);
+        List<Edge> ins = new ArrayList<Edge>();
+        for (Edge e : d.twin.EDGES)
+          if (e.receiver != d) ins.add(e);
+        if (ins.size() > 1 && outs.size() > 1) continue;
+
+        for (Edge in : ins) {
+          Vertex a = in.receiver;
+          a.EDGES = withoutEdge(a.EDGES,in);
+          for (Edge out : outs) {
+            Vertex x = out.sender;
+            if (x == a.twin) continue; // a would only get its own item back
+            Edge existing = null;
+            for (Edge e : a.EDGES)
+              if (e.sender == x) existing = e;
+            if (existing == null) {
+              Edge edge = new Edge(a,x,in.cost);
+              edge.smallSteps = in.smallSteps;
+              edge.bigSteps = in.bigSteps;
+              a.EDGES = withEdge(a.EDGES,edge);
+              x.EDGES = withEdge(x.EDGES,edge);
+            }
+            else if (in.cost < existing.cost) {
+              // a also wants x directly, but going through the dummy is cheaper
+              existing.cost = in.cost;
+              existing.smallSteps = in.smallSteps;
+              existing.bigSteps = in.bigSteps;
+            }
+          }
+        }
+        for (Edge out : outs)
+          out.sender.EDGES = withoutEdge(out.sender.EDGES,out);
+        for (Edge e : d.EDGES)
+          if (e.sender == d.twin) d.EDGES = d.twin.EDGES = new Edge[] { e };
+        gone[d.id] = true;
+        contracted++;
+        changed = true;
+      }
+    }
+    if (contracted == 0) return 0;
+
+    // Drop the contracted dummies, then prune again, because some edges may
+    // no longer lie on any cycle
+    int count = 0;
+    for (Vertex v : RECEIVERS)
+      if (!gone[v.id]) RECEIVERS[count++] = v;
+    RECEIVERS = Arrays.copyOf(RECEIVERS,count);
+    count = 0;
+    for (Vertex v : SENDERS)
+      if (!gone[v.id]) SENDERS[count++] = v;
+    SENDERS = Arrays.copyOf(SENDERS,count);
+    removeImpossibleEdges();
+    return contracted;
+  }
+
+  private static Edge[] withEdge(Edge[] edges,Edge edge) {
+    Edge[] result = Arrays.copyOf(edges,edges.length+1);
+    result[edges.length] = edge;
+    return result;
+  }
+
+  private static Edge[] withoutEdge(Edge[] edges,Edge edge) {
+    Edge[] result = new Edge[edges.length-1];
+    int count = 0;
+    for (Edge e : edges)
+      if (e != edge) result[count++] = e;
+    assert count == result.length;
+    return result;
+  }
+
+  // Group the remaining receivers by strongly connected component. After
+  // removeImpossibleEdges() no edge joins two components, so each group can
+  // be solved on its own.
+  List<List<Vertex>> components() {
+    HashMap<Integer,List<Vertex>> groups = new LinkedHashMap<Integer,List<Vertex>>();
+    for (Vertex v : RECEIVERS) {
+      List<Vertex> group = groups.get(v.component);
+      if (group == null) groups.put(v.component, group = new ArrayList<Vertex>());
+      group.add(v);
+    }
+    return new ArrayList<List<Vertex>>(groups.values());
+  }
+
   // Cull vertices that have no edges, except to themselves (receiver-sender pair)
   void removeOrphans() {
     // Count the number of vertices with at least one receiver
@@ -278,6 +532,223 @@ public class Graph {
     SENDERS = senders;
   }
 
+  //////////////////////////////////////////////////////////////////////
+  // Locality (--reorder)
+  //
+  // Every round of solve() follows the edges out of each vertex it reaches
+  // and looks up the prices at both ends. The vertices, their edges and their
+  // prices are laid out in the order the want lists were read, so on a trade
+  // too big for the cache the neighbours of a vertex are scattered all over
+  // memory and most edges followed miss the cache. reorder() numbers the
+  // receivers so that neighbours get nearby numbers, using Reverse
+  // Cuthill-McKee order on the wants taken both ways: components one after
+  // another, each searched breadth first from a vertex of least degree,
+  // visiting neighbours in order of increasing degree, and the whole order
+  // reversed at the end. The edges are then allocated afresh in that order,
+  // and solve() keeps every vertex's price and distance at its number (its
+  // slot) instead of at its position.
+  //
+  // Only the layout in memory changes. RECEIVERS, SENDERS and the order of
+  // every list of edges are left alone, as is shuffle(), so all ties are
+  // broken exactly as before and the matching found is the same. The vertices
+  // themselves stay where they are, since too much refers to them. How much
+  // this gains depends on the trade and on the size of the cache; use
+  // LocalityBenchmark to measure it.
+
+  private Vertex[] localOrder = null; // the receivers by slot, once reordered
+
+  void reorder() {
+    assert frozen;
+    int n = RECEIVERS.length;
+    for (int i = 0; i < n; i++) RECEIVERS[i].position = i;
+
+    // Neighbours are the senders a receiver wants and the receivers that want
+    // its twin, both taken as receivers
+    final int[] degree = new int[n];
+    for (Vertex v : RECEIVERS) degree[v.position] = v.EDGES.length + v.twin.EDGES.length - 2;
+    Comparator<Vertex> byDegree = new Comparator<Vertex>() {
+      public int compare(Vertex a,Vertex b) {
+        if (degree[a.position] != degree[b.position])
+          return degree[a.position] < degree[b.position] ? -1 : 1;
+        return a.position - b.position;
+      }
+    };
+    Vertex[] starts = RECEIVERS.clone();
+    Arrays.sort(starts,byDegree);
+
+    Vertex[] order = new Vertex[n];
+    boolean[] visited = new boolean[n];
+    List<Vertex> neighbours = new ArrayList<Vertex>();
+    int count = 0;
+    for (Vertex start : starts) {
+      if (visited[start.position]) continue; // the component is numbered already
+      visited[start.position] = true;
+      order[count++] = start;
+      for (int next = count-1; next < count; next++) {
+        Vertex v = order[next];
+        neighbours.clear();
+        for (Edge e : v.EDGES) {
+          Vertex u = e.sender.twin;
+          if (!visited[u.position]) {
+            visited[u.position] = true;
+            neighbours.add(u);
+          }
+        }
+        for (Edge e : v.twin.EDGES) {
+          Vertex u = e.receiver;
+          if (!visited[u.position]) {
+            visited[u.position] = true;
+            neighbours.add(u);
+          }
+        }
+        Collections.sort(neighbours,byDegree);
+        for (Vertex u : neighbours) order[count++] = u;
+      }
+    }
+    assert count == n;
+    for (int i = 0, j = n-1; i < j; i++, j--) {
+      Vertex tmp = order[i];
+      order[i] = order[j];
+      order[j] = tmp;
+    }
+    localOrder = order;
+
+    // Allocate the edges again in the new order, each receiver's next to the
+    // list of its twin, keeping the order within every list
+    IdentityHashMap<Edge,Edge> moved = new IdentityHashMap<Edge,Edge>();
+    Edge[][] senderEdges = new Edge[n][];
+    for (int i = 0; i < n; i++) {
+      Vertex v = order[i];
+      Edge[] edges = new Edge[v.EDGES.length];
+      for (int k = 0; k < edges.length; k++) {
+        Edge e = v.EDGES[k];
+        Edge copy = new Edge(e.receiver,e.sender,e.cost);
+        copy.smallSteps = e.smallSteps;
+        copy.bigSteps = e.bigSteps;
+        edges[k] = copy;
+        moved.put(e,copy);
+      }
+      v.EDGES = edges;
+      senderEdges[i] = new Edge[v.twin.EDGES.length];
+    }
+    for (int i = 0; i < n; i++) {
+      Vertex s = order[i].twin;
+      for (int k = 0; k < senderEdges[i].length; k++) senderEdges[i][k] = moved.get(s.EDGES[k]);
+      s.EDGES = senderEdges[i];
+    }
+
+    // The lists would keep the old edges alive; only their sizes are needed
+    if (wantCounts == null) {
+      wantCounts = new int[receivers.size()];
+      for (Vertex v : receivers) {
+        wantCounts[v.id] = v.edges.size()-1;
+        v.edges = null;
+      }
+      for (Vertex v : senders) v.edges = null;
+    }
+  }
+
+  // Give the receivers and senders being solved their slots, in the order of
+  // localOrder. After reduce() or fixEdges() only some of them are left.
+  private void assignSlots() {
+    advanceTimestamp();
+    for (Vertex v : RECEIVERS) v.mark = timestamp;
+    for (Vertex v : SENDERS) v.mark = timestamp;
+    int receiverSlot = 0, senderSlot = 0;
+    for (Vertex v : localOrder) {
+      if (v.mark == timestamp) v.slot = receiverSlot++;
+      if (v.twin.mark == timestamp) v.twin.slot = senderSlot++;
+    }
+    assert receiverSlot == RECEIVERS.length && senderSlot == SENDERS.length;
+  }
+
+  // How close together the ends of the edges are: the average distance
+  // between them in the price arrays, and the share of edges whose ends are
+  // on the same cache line of them (8 prices to a line). For LocalityBenchmark.
+  double[] edgeLocality() {
+    for (int i = 0; i < RECEIVERS.length; i++) {
+      RECEIVERS[i].position = RECEIVERS[i].slot = i;
+      SENDERS[i].position = SENDERS[i].slot = i;
+    }
+    if (localOrder != null) assignSlots();
+    long edges = 0, sameLine = 0;
+    double gaps = 0;
+    for (Vertex v : RECEIVERS) {
+      for (Edge e : v.EDGES) {
+        if (e.sender == v.twin) continue;
+        gaps += Math.abs(v.slot - e.sender.slot);
+        if (v.slot/8 == e.sender.slot/8) sameLine++;
+        edges++;
+      }
+    }
+    if (edges == 0) return new double[] { 0, 0 };
+    return new double[] { gaps/edges, (double)sameLine/edges };
+  }
+
+  // Derives edge costs for copy()
+  interface CostFunction {
+    long cost(Edge edge);
+  }
+
+  // Make an independent copy of this graph, after removeImpossibleEdges(),
+  // with every edge cost recomputed by costs. Vertex ids, names, the edge
+  // order and the shuffle seed are kept, so the copy solves exactly as a
+  // graph built directly with those costs would. The symbol table is shared,
+  // so the copy can only be used for solving and output, not for lookups.
+  Graph copy(CostFunction costs) {
+    assert frozen;
+    Graph g = new Graph();
+    g.symbols = symbols;
+    g.setSeed(seed);
+
+    for (Vertex v : receivers) {
+      Vertex r = g.newVertexPair(v.name,null,v.isDummy);
+      r.user = r.twin.user = v.user;
+      r.perUser = r.twin.perUser = v.perUser;
+    }
+
+    IdentityHashMap<Edge,Edge> copies = new IdentityHashMap<Edge,Edge>();
+    for (Vertex v : receivers) {
+      Vertex r = g.receivers.get(v.id);
+      Edge[] edges = v.EDGES;
+      r.EDGES = new Edge[edges.length];
+      for (int i = 0; i < edges.length; i++) {
+        Edge e = edges[i];
+        Edge copy = new Edge(r,g.senders.get(e.sender.id),costs.cost(e));
+        copy.smallSteps = e.smallSteps;
+        copy.bigSteps = e.bigSteps;
+        r.EDGES[i] = copy;
+        copies.put(e,copy);
+      }
+    }
+    for (Vertex v : senders) {
+      Vertex s = g.senders.get(v.id);
+      s.EDGES = new Edge[v.EDGES.length];
+      for (int i = 0; i < v.EDGES.length; i++) {
+        s.EDGES[i] = copies.get(v.EDGES[i]);
+        s.minimumInCost = Math.min(s.EDGES[i].cost,s.minimumInCost);
+      }
+    }
+
+    g.RECEIVERS = new Vertex[RECEIVERS.length];
+    for (int i = 0; i < RECEIVERS.length; i++) g.RECEIVERS[i] = g.receivers.get(RECEIVERS[i].id);
+    g.SENDERS = new Vertex[SENDERS.length];
+    for (int i = 0; i < SENDERS.length; i++) g.SENDERS[i] = g.senders.get(SENDERS[i].id);
+    for (Vertex v : orphans) g.orphans.add(g.receivers.get(v.id));
+    if (localOrder != null) {
+      g.localOrder = new Vertex[localOrder.length];
+      for (int i = 0; i < localOrder.length; i++) g.localOrder[i] = g.receivers.get(localOrder[i].id);
+    }
+    g.reduce = reduce;
+    g.greedyInit = greedyInit;
+    g.parallelShortestPaths = parallelShortestPaths;
+    g.multiAugment = multiAugment;
+    g.verify = verify;
+    g.threads = threads;
+    g.frozen = true;
+    return g;
+  }
+
   //////////////////////////////////////////////////////////////////////
 
   Vertex sinkFrom; // designates the sending vertex (node) with the lowest cost
@@ -285,9 +756,17 @@ public class Graph {
 
   static final long INFINITY = 100000000000000L; // 10^14
 
+  // Per slot of RECEIVERS and SENDERS: the current prices, and the
+  // distances found by the last dijkstra()
+  private long[] receiverPrice, senderPrice;
+  private long[] receiverDistance, senderDistance;
+
   void dijkstra() {
     sinkFrom = null;
     sinkCost = Long.MAX_VALUE;
+    // Whatever is never reached stays at INFINITY
+    Arrays.fill(receiverDistance,INFINITY);
+    Arrays.fill(senderDistance,INFINITY);
 
     // Insert all vertices, both receiver and sender, into the heap
     Heap heap = new Heap();
@@ -310,17 +789,19 @@ public class Graph {
       long cost = minEntry.cost();
 
       if (cost == INFINITY) break; // everything left is unreachable
+      if (vertex.type == VertexType.RECEIVER) receiverDistance[vertex.slot] = cost;
+      else senderDistance[vertex.slot] = cost;
 
-/* System.out.println(" "+vertex.name); */
+/* System.out.println(" "+nameOf(vertex)); */
       if (vertex.type == VertexType.RECEIVER) {
         for (Edge e : vertex.EDGES) {
           Vertex other = e.sender;
-/* System.out.println("    "+vertex.name+"->"+other.name); */
+/* System.out.println("    "+nameOf(vertex)+"->"+nameOf(other)); */
           if (other == vertex.match) continue; // ignore item's current match
           // Price of receiver->sender is RecvPrice + edgeCost - SendPrice
           // Note: The SendPrice is typically the value of the sender's lowest edgeCost
           //       until all edges' vertices have been matched, then it's infinite.
-          long c = vertex.price + e.cost - other.price;
+          long c = receiverPrice[vertex.slot] + e.cost - senderPrice[other.slot];
           assert c >= 0; // per algorithm, all costs must be non-negative
           if (cost + c < other.heapEntry.cost()) {
             // We found a cheaper path between the vertex and this sender
@@ -339,7 +820,7 @@ public class Graph {
         Vertex other = vertex.match;
         // Price of sender->receiver is SendPrice + edgeCost - RecvPrice
         // Note: The RecvPrice is low until everything wanting the item is matched up
-        long c = vertex.price - other.matchCost - other.price;
+        long c = senderPrice[vertex.slot] - other.matchCost - receiverPrice[other.slot];
         assert c >= 0;
         if (cost + c < other.heapEntry.cost()) {
           other.heapEntry.decreaseCost(cost + c);
@@ -349,59 +830,909 @@ public class Graph {
     }
   } // end dijkstra
 
+  //////////////////////////////////////////////////////////////////////
+  // Parallel shortest paths (#! PARALLEL-SHORTEST-PATHS)
+  //
+  // deltaStepping() finds the same distances as dijkstra(), over the same
+  // reduced costs, but spreads the work over several threads. Vertices are
+  // settled in buckets of width delta. Within a bucket, every vertex whose
+  // distance went down in the previous round has its edges relaxed in
+  // parallel, using its distance as of the start of the round, until no
+  // distance in the bucket changes any more. Because each round only depends
+  // on the one before, the result does not depend on the number of threads or
+  // on how they interleave.
+  //
+  // The predecessor of each vertex is then the lowest-positioned neighbour
+  // on a shortest path whose distance was set in an earlier round. Every
+  // vertex has such a neighbour (whichever set its distance), and following
+  // predecessors always goes back in rounds, so they form a tree. Ties between
+  // unmatched senders are broken by position. Since ties are broken
+  // differently than by the heap in dijkstra(), the matching found can differ
+  // between equally good ones.
+
+  boolean parallelShortestPaths = false;
+  int threads = 1;
+  private ExecutorService pathPool; // started by relaxAll() when needed, stopped by solve()
+
+  static final int PARALLEL_FRONTIER = 512; // smaller frontiers run on one thread
+
+  // Receivers are numbered by position, senders by n + position
+  private AtomicLongArray dist;
+  private int[] stamp;        // the round in which dist last went down
+  private long[] relaxedDist; // the dist at which each vertex was last relaxed
+
+  void deltaStepping() {
+    final int n = RECEIVERS.length;
+    if (dist == null || dist.length() != 2*n) {
+      dist = new AtomicLongArray(2*n);
+      stamp = new int[2*n];
+      relaxedDist = new long[2*n];
+    }
+
+    // Bucket width: the average reduced cost of a want
+    long total = 0, count = 0;
+    for (Vertex v : RECEIVERS) {
+      for (Edge e : v.EDGES) {
+        if (e.sender == v.twin || e.sender == v.match) continue;
+        total += receiverPrice[v.slot] + e.cost - senderPrice[e.sender.slot];
+        count++;
+        if (total > INFINITY) break;
+      }
+    }
+    long delta = Math.max(1, count == 0 ? 1 : total/count);
+
+    List<Integer> pending = new ArrayList<Integer>();
+    for (int i = 0; i < 2*n; i++) {
+      dist.set(i, INFINITY);
+      stamp[i] = 0;
+      relaxedDist[i] = -1;
+    }
+    for (int i = 0; i < n; i++) {
+      if (RECEIVERS[i].match == null) {
+        dist.set(i, 0);
+        pending.add(i);
+      }
+    }
+
+    int round = 0;
+    while (!pending.isEmpty()) {
+      // The next bucket starts at the smallest distance not yet relaxed
+      long start = INFINITY;
+      List<Integer> waiting = new ArrayList<Integer>();
+      for (int v : pending) {
+        if (dist.get(v) == relaxedDist[v]) continue; // already relaxed there
+        waiting.add(v);
+        start = Math.min(start, dist.get(v));
+      }
+      if (waiting.isEmpty()) break;
+      long end = start + delta;
+      List<Integer> frontier = new ArrayList<Integer>();
+      pending = new ArrayList<Integer>();
+      for (int v : waiting) {
+        if (dist.get(v) < end) frontier.add(v);
+        else pending.add(v);
+      }
+
+      while (!frontier.isEmpty()) {
+        round++;
+        int[] touched = relaxAll(frontier, round);
+        frontier = new ArrayList<Integer>();
+        for (int v : touched) {
+          if (dist.get(v) < end) frontier.add(v);
+          else pending.add(v);
+        }
+      }
+    }
+
+    // Distances, predecessors and the cheapest unmatched sender
+    sinkFrom = null;
+    sinkCost = Long.MAX_VALUE;
+    for (int i = 0; i < n; i++) {
+      Vertex r = RECEIVERS[i];
+      long d = dist.get(i);
+      receiverDistance[r.slot] = d;
+      r.from = d < INFINITY && r.match != null ? r.match : null;
+    }
+    for (int i = 0; i < n; i++) {
+      Vertex s = SENDERS[i];
+      long d = dist.get(n+i);
+      senderDistance[s.slot] = d;
+      s.from = null;
+      if (d >= INFINITY) continue;
+      int best = Integer.MAX_VALUE;
+      for (Edge e : s.EDGES) {
+        Vertex r = e.receiver;
+        int p = r.position;
+        if (r.match == s || p >= best || stamp[p] >= stamp[n+i]) continue;
+        long dr = dist.get(p);
+        if (dr < INFINITY && dr + receiverPrice[r.slot] + e.cost - senderPrice[s.slot] == d) {
+          best = p;
+          s.from = r;
+        }
+      }
+      assert s.from != null;
+      if (s.match == null && d < sinkCost) {
+        sinkFrom = s;
+        sinkCost = d;
+      }
+    }
+  }
+
+  // Relax the edges of every vertex in frontier, in parallel if it is big
+  // enough. Returns the vertices whose distance went down, in order.
+  private int[] relaxAll(final List<Integer> frontier,final int round) {
+    final int size = frontier.size();
+    final long[] from = new long[size];
+    for (int k = 0; k < size; k++) {
+      int v = frontier.get(k);
+      from[k] = dist.get(v);
+      relaxedDist[v] = from[k];
+    }
+
+    int chunks = size < PARALLEL_FRONTIER ? 1 : Math.min(threads, size / (PARALLEL_FRONTIER/4));
+    List< Callable<int[]> > tasks = new ArrayList< Callable<int[]> >();
+    for (int c = 0; c < chunks; c++) {
+      final int first = (int)((long)size*c/chunks);
+      final int last = (int)((long)size*(c+1)/chunks);
+      tasks.add(new Callable<int[]>() {
+        public int[] call() {
+          IntList touched = new IntList();
+          for (int k = first; k < last; k++) relax(frontier.get(k), from[k], round, touched);
+          return touched.toArray();
+        }
+      });
+    }
+
+    IntList all = new IntList();
+    try {
+      if (chunks == 1) all.addAll(tasks.get(0).call());
+      else {
+        if (pathPool == null) pathPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "shortest-paths");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+        for (Future<int[]> future : pathPool.invokeAll(tasks)) all.addAll(future.get());
+      }
+    }
+    catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+
+    // Sort and drop duplicates, so the order never depends on the threads
+    int[] touched = all.toArray();
+    Arrays.sort(touched);
+    int count = 0;
+    for (int i = 0; i < touched.length; i++)
+      if (i == 0 || touched[i] != touched[i-1]) touched[count++] = touched[i];
+    return Arrays.copyOf(touched, count);
+  }
+
+  // Relax the edges out of vertex v, which is at distance d
+  private void relax(int v,long d,int round,IntList touched) {
+    int n = RECEIVERS.length;
+    if (v < n) {
+      Vertex r = RECEIVERS[v];
+      for (Edge e : r.EDGES) {
+        Vertex s = e.sender;
+        if (s == r.match) continue;
+        lower(n+s.position, d + receiverPrice[r.slot] + e.cost - senderPrice[s.slot], round, touched);
+      }
+    }
+    else {
+      Vertex s = SENDERS[v-n];
+      if (s.match == null) return; // a possible end of the augmenting path
+      Vertex r = s.match;
+      lower(r.position, d + senderPrice[s.slot] - r.matchCost - receiverPrice[r.slot], round, touched);
+    }
+  }
+
+  // Lower the distance of vertex u to d, if that is an improvement
+  private void lower(int u,long d,int round,IntList touched) {
+    if (d >= INFINITY) return;
+    for (long old = dist.get(u); d < old; old = dist.get(u)) {
+      if (dist.compareAndSet(u, old, d)) {
+        stamp[u] = round; // every thread that gets here writes the same round
+        touched.add(u);
+        return;
+      }
+    }
+  }
+
+  // A growable array of ints
+  private static class IntList {
+    int[] items = new int[16];
+    int size = 0;
+    void add(int x) {
+      if (size == items.length) items = Arrays.copyOf(items, 2*size);
+      items[size++] = x;
+    }
+    void addAll(int[] xs) {
+      for (int x : xs) add(x);
+    }
+    int[] toArray() { return Arrays.copyOf(items, size); }
+  }
+
   List<List<Vertex>> findCycles() {
+    solve();
+    return collectCycles();
+  }
+
+  // Find the matching that findCycles() turns into cycles, without
+  // collecting them, so iterations that do not improve on the best matching
+  // can be judged by sumOfSquares() alone
+  void solve() {
     assert frozen; // graph analysis should only be performed when we are done adding things
 
-    // Initialize all vertices
-    for (Vertex v : RECEIVERS) {
+    // Shrink the graph first if asked to; see reduce()
+    if (reduce) reduce();
+
+    // Initialize all vertices. Prices and distances are kept in arrays by
+    // slot, so that the price updates can run as bulk array operations. The
+    // slot is the position unless the graph was reordered; see reorder().
+    int n = RECEIVERS.length;
+    receiverPrice = new long[n];
+    senderPrice = new long[n];
+    receiverDistance = new long[n];
+    senderDistance = new long[n];
+    for (int i = 0; i < n; i++) {
+      Vertex v = RECEIVERS[i];
       v.match = null;
-      v.price = 0;
+      v.position = v.slot = i;
     }
-    for (Vertex v : SENDERS) {
+    for (int i = 0; i < n; i++) {
+      Vertex v = SENDERS[i];
       v.match = null;
-      v.price = v.minimumInCost;
+      v.position = v.slot = i;
+    }
+    if (localOrder != null) assignSlots();
+    for (Vertex v : SENDERS) senderPrice[v.slot] = v.minimumInCost;
+
+    // Each round matches one more receiver, so rounds are only needed for
+    // the receivers that the greedy start (if any) left unmatched
+    int unmatched = RECEIVERS.length;
+    if (greedyInit) unmatched -= greedyMatch();
+
+    try {
+      while (unmatched > 0) {
+        if (parallelShortestPaths) deltaStepping();
+        else dijkstra();
+
+        if (multiAugment) {
+          unmatched -= augmentAll(sinkCost);
+          continue;
+        }
+
+        // Update the matching
+        Vertex sender = sinkFrom;
+        assert sender != null;
+        while (sender != null) {
+          Vertex receiver = sender.from;
+
+          // Unlink sender and receiver from current matches
+          if (sender.match != null) sender.match.match = null;
+          if (receiver.match != null) receiver.match.match = null;
+
+          // Set the sender/receiver match to each other
+          sender.match = receiver;
+          receiver.match = sender;
+
+          // Update matchCost
+          for (Edge e : receiver.EDGES) { // iterate until we find the corresponding edge
+            if (e.sender == sender) {
+              receiver.matchCost = e.cost;
+              break;
+            }
+          }
+
+          sender = receiver.from; // evaluate the sender node this was connected to previously
+        }
+
+        // Update the prices
+        PriceKernel.INSTANCE.add(receiverPrice,receiverDistance,n);
+        PriceKernel.INSTANCE.add(senderPrice,senderDistance,n);
+        unmatched--;
+      }
+    }
+    finally {
+      // The threads of deltaStepping() are only needed during a solve, and
+      // must not outlive a graph that is dropped (such as a --sweep copy)
+      if (pathPool != null) {
+        pathPool.shutdown();
+        pathPool = null;
+      }
+    }
+
+    // Check the answer while the prices still fit the graph they came from
+    long certifiedCost = 0;
+    if (verify) {
+      violation = verifyOptimality();
+      certifiedCost = dualCost();
     }
 
-    for (int round = 0; round < RECEIVERS.length; round++) {
-      dijkstra();
+    // Put back whatever reduce() took out, then check that this gave a
+    // perfect matching of the whole graph that costs what it should
+    if (reduce) {
+      long forcedCost = forcedCost();
+      expand();
+      if (verify && violation == null) violation = verifyExpansion(certifiedCost + forcedCost);
+    }
 
-      // Update the matching
-      Vertex sender = sinkFrom;
-      assert sender != null;
-      while (sender != null) {
-        Vertex receiver = sender.from;
+    // Bypass dummy entries that are matched and match the dummies to themselves
+    // (unless the matching is already known to be broken, and may have holes)
+    if (violation != null) return;
+    elideDummies();
+    if (verify) violation = verifyElision();
+  } // end solve
+
+  boolean verify = false;
+  String violation = null; // what verifyOptimality() found in the last solve()
+
+  // Check that the current matching is a perfect matching of minimum cost,
+  // using the final prices as a certificate. If every receiver is matched to
+  // a sender it wants, every edge has a non-negative reduced cost
+  //     receiverPrice + cost - senderPrice
+  // and every matched edge has a reduced cost of exactly zero, then the cost
+  // of the matching equals the sum of the sender prices minus the sum of the
+  // receiver prices, and no perfect matching can cost less than that. This
+  // takes one pass over the edges and does not trust anything else the
+  // solver did, so any shortcut that breaks optimality is caught. Must be
+  // called before expand() and elideDummies(), since the prices belong to the
+  // graph that was actually solved; verifyExpansion() and verifyElision()
+  // check those two steps afterwards. Returns null if the certificate holds, or
+  // else a description of the first edge that breaks it.
+  String verifyOptimality() {
+    for (Vertex receiver : RECEIVERS) {
+      Vertex match = receiver.match;
+      if (match == null || match.match != receiver)
+        return nameOf(receiver) + " is not matched";
+      boolean wanted = false;
+      for (Edge e : receiver.EDGES) {
+        long reduced = receiverPrice[receiver.slot] + e.cost - senderPrice[e.sender.slot];
+        if (!wanted && e.sender == match && e.cost == receiver.matchCost) {
+          wanted = true;
+          if (reduced != 0)
+            return "matched edge " + nameOf(receiver) + " -> " + nameOf(e.sender)
+                   + " has reduced cost " + reduced;
+        }
+        else if (reduced < 0)
+          return "edge " + nameOf(receiver) + " -> " + nameOf(e.sender)
+                 + " has reduced cost " + reduced;
+      }
+      if (!wanted)
+        return nameOf(receiver) + " is matched to " + nameOf(match)
+               + " without a want of cost " + receiver.matchCost;
+    }
+    return null;
+  }
 
-        // Unlink sender and receiver from current matches
-        if (sender.match != null) sender.match.match = null;
-        if (receiver.match != null) receiver.match.match = null;
+  // The lower bound on the cost of a perfect matching that the prices prove:
+  // the sum of the sender prices minus the sum of the receiver prices. Once
+  // verifyOptimality() has passed, this is the cost of the matching found.
+  long dualCost() {
+    long cost = 0;
+    for (Vertex v : SENDERS) cost += senderPrice[v.slot];
+    for (Vertex v : RECEIVERS) cost -= receiverPrice[v.slot];
+    return cost;
+  }
 
-        // Set the sender/receiver match to each other
-        sender.match = receiver;
-        receiver.match = sender;
+  // Check what expand() made of the matching: every receiver of the whole
+  // graph must be matched to a sender it wants, at the cost of that want,
+  // and no sender may be matched twice. The matching must cost exactly
+  // expectedCost, which is the certified cost of the reduced graph plus what
+  // the steps of reduce() add back (see forcedCost()). Returns null if all is
+  // well, or else a description of the first problem.
+  String verifyExpansion(long expectedCost) {
+    long cost = 0;
+    for (Vertex receiver : RECEIVERS) {
+      Vertex match = receiver.match;
+      if (match == null || match.match != receiver)
+        return "after expanding, " + nameOf(receiver) + " is not matched";
+      boolean wanted = false;
+      for (Edge e : receiver.EDGES)
+        if (e.sender == match && e.cost == receiver.matchCost) wanted = true;
+      if (!wanted)
+        return "after expanding, " + nameOf(receiver) + " is matched to " + nameOf(match)
+               + " without a want of cost " + receiver.matchCost;
+      cost += receiver.matchCost;
+    }
+    if (cost != expectedCost)
+      return "after expanding, the matching costs " + cost + " instead of " + expectedCost;
+    return null;
+  }
 
-        // Update matchCost
-        for (Edge e : receiver.EDGES) { // iterate until we find the corresponding edge
-          if (e.sender == sender) {
-            receiver.matchCost = e.cost;
-            break;
+  // Check what elideDummies() made of the matching: every receiver is still
+  // matched to a sender that is matched back, and none but a dummy is
+  // matched to a dummy. Returns null if all is well, or else a description
+  // of the first problem.
+  String verifyElision() {
+    for (Vertex receiver : RECEIVERS) {
+      Vertex match = receiver.match;
+      if (match == null || match.match != receiver)
+        return "after eliding dummies, " + nameOf(receiver) + " is not matched";
+      if (!receiver.isDummy && match.isDummy)
+        return "after eliding dummies, " + nameOf(receiver) + " is matched to " + nameOf(match);
+    }
+    return null;
+  }
+
+  //////////////////////////////////////////////////////////////////////
+  // Edge fixing (#! FIX-EDGES)
+  //
+  // After a solve, the final prices prove that no perfect matching costs less
+  // than the one found (see verifyOptimality()). They prove more than that:
+  // the cost of any perfect matching is the optimal cost plus the sum of the
+  // reduced costs of its edges, and none of those is negative. So an edge with
+  // a positive reduced cost cannot be part of any matching of optimal cost, and
+  // every later solve, which always finds a matching of optimal cost, may as
+  // well do without it. fixEdges() removes all such edges (except the no-trade
+  // edges, which every vertex keeps), and then removeImpossibleEdges() takes
+  // out whatever can no longer be part of a loop, including items that cannot
+  // trade at all any more. These were not trading in the solve just done
+  // either, and are remembered as such for saveMatches().
+  //
+  // The prices must come from a solve of this very graph, so this does not
+  // work together with reduce(), whose prices only cover the reduced graph.
+
+  String fixingStats = null; // what fixEdges() removed, for display
+  // The same as numbers, as for reductionCounts: edges fixed out, then edges
+  // and items removed in all
+  int[] fixingCounts = null;
+  private List<Vertex> fixedOut = new ArrayList<Vertex>();
+
+  int fixEdges() {
+    assert !reduce;
+    int edgesBefore = 0, fixed = 0;
+    for (Vertex v : RECEIVERS) {
+      edgesBefore += v.EDGES.length;
+      int count = 0;
+      Edge[] kept = new Edge[v.EDGES.length];
+      for (Edge e : v.EDGES) {
+        if (isFixable(e)) fixed++;
+        else kept[count++] = e;
+      }
+      v.EDGES = Arrays.copyOf(kept, count);
+    }
+    for (Vertex v : SENDERS) {
+      int count = 0;
+      Edge[] kept = new Edge[v.EDGES.length];
+      for (Edge e : v.EDGES)
+        if (!isFixable(e)) kept[count++] = e;
+      v.EDGES = Arrays.copyOf(kept, count);
+    }
+
+    Vertex[] before = RECEIVERS;
+    removeImpossibleEdges();
+    int edgesAfter = 0;
+    for (Vertex v : RECEIVERS) edgesAfter += v.EDGES.length;
+
+    // Whatever was taken out is not trading in the current matching
+    Set<Vertex> remaining = new HashSet<Vertex>(Arrays.asList(RECEIVERS));
+    for (Vertex v : before) {
+      if (remaining.contains(v)) continue;
+      assert v.match == v.twin;
+      fixedOut.add(v);
+    }
+
+    fixingCounts = new int[] { fixed, edgesBefore - edgesAfter, before.length - RECEIVERS.length };
+    fixingStats = describeFixing(fixingCounts);
+    return edgesBefore - edgesAfter;
+  }
+
+  // The fixing statistics for the given counts (see fixingCounts)
+  static String describeFixing(int[] counts) {
+    return counts[0] + " edges fixed out, " + counts[1] + " edges and "
+           + counts[2] + " items removed in all";
+  }
+
+  private boolean isFixable(Edge e) {
+    if (e.sender == e.receiver.twin) return false;
+    return receiverPrice[e.receiver.slot] + e.cost - senderPrice[e.sender.slot] > 0;
+  }
+
+  boolean multiAugment = false;
+
+  // Augment along as many shortest paths as possible after a single search
+  // (#! MULTI-AUGMENT), instead of along just the one to sinkFrom. Prices are
+  // raised by the distances of the last search, but no further than limit,
+  // the length of the shortest augmenting path. That leaves every reduced cost
+  // non-negative, and makes every edge on a shortest augmenting path "tight"
+  // (of reduced cost zero). Augmenting along any path of tight edges keeps
+  // the matching of minimum cost for its size, just as augmenting along the
+  // path to sinkFrom does, so a depth first search over tight edges collects
+  // vertex-disjoint augmenting paths from every unmatched receiver and they
+  // are all augmented at once. A sender that one search could not get past
+  // cannot lead anywhere for a later one either, so each sender is visited at
+  // most once per call. The search is iterative, since paths can be as long as
+  // the graph. Returns the number of receivers matched (at least one).
+  private int augmentAll(long limit) {
+    int n = RECEIVERS.length;
+    for (int i = 0; i < n; i++) {
+      if (receiverDistance[i] > limit) receiverDistance[i] = limit;
+      if (senderDistance[i] > limit) senderDistance[i] = limit;
+    }
+    PriceKernel.INSTANCE.add(receiverPrice,receiverDistance,n);
+    PriceKernel.INSTANCE.add(senderPrice,senderDistance,n);
+
+    boolean[] visited = new boolean[n]; // senders, by position
+    Vertex[] path = new Vertex[n];      // receivers on the current path
+    Edge[] via = new Edge[n];           // the edge taken out of each of them
+    int[] next = new int[n];            // the next edge to try out of each
+    int matched = 0;
+    for (Vertex root : RECEIVERS) {
+      if (root.match != null) continue;
+      int depth = 0;
+      path[0] = root;
+      next[0] = 0;
+      while (depth >= 0) {
+        Vertex receiver = path[depth];
+        if (next[depth] == receiver.EDGES.length) { // dead end, back up
+          depth--;
+          continue;
+        }
+        Edge e = receiver.EDGES[next[depth]++];
+        Vertex sender = e.sender;
+        if (sender == receiver.match || visited[sender.position]) continue;
+        if (receiverPrice[receiver.slot] + e.cost != senderPrice[sender.slot]) continue;
+        visited[sender.position] = true;
+        via[depth] = e;
+        if (sender.match != null) { // carry on from the receiver it is matched to
+          path[++depth] = sender.match;
+          next[depth] = 0;
+          continue;
+        }
+
+        // Found a free sender: every receiver on the path moves to the
+        // sender it was searched through
+        for (int k = 0; k <= depth; k++) {
+          path[k].match = via[k].sender;
+          via[k].sender.match = path[k];
+          path[k].matchCost = via[k].cost;
+        }
+        matched++;
+        break;
+      }
+    }
+    assert matched > 0; // the path to sinkFrom is always tight
+    return matched;
+  }
+
+  boolean greedyInit = false;
+
+  // Match as many receivers as we cheaply can before the first round of
+  // findCycles() (#! GREEDY-INIT). With the starting prices (zero for the
+  // receivers, the cheapest incoming edge for the senders), every edge has a
+  // non-negative reduced cost, and the "tight" edges, whose reduced cost is
+  // zero, are each sender's cheapest incoming edges. Any matching made of
+  // tight edges is a valid state for the rounds that follow: the prices stay
+  // feasible and every matched edge has a reduced cost of zero, which is all
+  // the shortest path rounds rely on, so the final matching is still of
+  // minimum cost. Each receiver first takes a free tight sender; failing
+  // that, it tries to move the holder of one of its tight senders on to
+  // another free tight sender (an augmenting path of length one).
+  // Returns the number of receivers matched.
+  private int greedyMatch() {
+    int matched = 0;
+    for (Vertex r : RECEIVERS) {
+      Edge free = null;
+      for (Edge e : r.EDGES) {
+        if (e.cost == e.sender.minimumInCost && e.sender.match == null) {
+          free = e;
+          break;
+        }
+      }
+      if (free == null) {
+        search:
+        for (Edge e : r.EDGES) {
+          if (e.cost != e.sender.minimumInCost) continue;
+          Vertex holder = e.sender.match;
+          for (Edge f : holder.EDGES) {
+            if (f.cost == f.sender.minimumInCost && f.sender.match == null) {
+              holder.match = f.sender;
+              f.sender.match = holder;
+              holder.matchCost = f.cost;
+              free = e;
+              break search;
+            }
           }
         }
+      }
+      if (free != null) {
+        r.match = free.sender;
+        free.sender.match = r;
+        r.matchCost = free.cost;
+        matched++;
+      }
+    }
+    return matched;
+  }
 
-        sender = receiver.from; // evaluate the sender node this was connected to previously
+  //////////////////////////////////////////////////////////////////////
+  // Graph reductions (#! REDUCE-GRAPH)
+  //
+  // Before each solve, reduce() repeatedly applies two rules that cannot
+  // change the cost of the best matching, and records every step so that
+  // expand() can turn the matching of the smaller graph back into one of the
+  // whole graph. Afterwards every vertex and edge array is put back exactly
+  // as it was, so shuffle() and later solves see the original graph.
+  //
+  // Every receiver r has a "partner" sender, initially its twin, and the edge
+  // between the two is r's no-trade edge.
+  //
+  // FORCED MATCH. If r's only edge goes to its partner s, or s's only edge
+  // comes from r, then r must be matched to s. Both are removed, together
+  // with every other edge into s or out of r.
+  //
+  // FORCED PAIR. If r has only one edge besides the one to its partner s,
+  // going to sender t, and t has only one edge besides the one from its
+  // partner q, coming from r, then either r gets t, or r and q both keep
+  // their own items. So r and t are removed, and q and s become partners.
+  // The new no-trade edge q->s costs what not trading would have cost,
+  // cost(r,s) + cost(q,t) - cost(r,t), or cost(q,s) if q wants s anyway and
+  // that is cheaper (r and q then swap). Long forced chains are collapsed
+  // one pair at a time.
+
+  boolean reduce = false;
+  String reductionStats = null; // what the last reduce() removed, for display
+  // The same as numbers, so that the figures of the components solved by
+  // ShardedSolver can be added up: vertices and edges removed by forced
+  // pairs, then vertices and edges removed by forced matches
+  int[] reductionCounts = null;
+
+  private static final int FORCED_MATCH = 0, FORCED_PAIR = 1;
+
+  // One application of a rule, for expand()
+  private static class Step {
+    int rule;
+    Vertex r, s, t, q;   // as in the rules above; t and q only for pairs
+    long rs, qt, rt, qs; // edge costs
+    boolean swap;        // a pair whose q->s edge is a real want
+  }
+
+  // One change to the graph, for undoing it
+  private static class Change {
+    Vertex vertex;
+    Edge[] edges;
+    long minimumInCost;
+    Edge edge;
+    long cost;
+  }
+
+  private Vertex[] fullReceivers, fullSenders;
+  private List<Step> steps;
+  private List<Change> changes;
+  private Vertex[] partnerOf;        // receiver id -> partner sender
+  private Vertex[] partnerOfSender;  // sender id -> partner receiver
+  private boolean[] receiverGone, senderGone;
+
+  private void reduce() {
+    fullReceivers = RECEIVERS;
+    fullSenders = SENDERS;
+    steps = new ArrayList<Step>();
+    changes = new ArrayList<Change>();
+    partnerOf = new Vertex[receivers.size()];
+    partnerOfSender = new Vertex[senders.size()];
+    receiverGone = new boolean[receivers.size()];
+    senderGone = new boolean[senders.size()];
+    for (Vertex v : RECEIVERS) {
+      partnerOf[v.id] = v.twin;
+      partnerOfSender[v.twin.id] = v;
+    }
+
+    int[] vertices = new int[2], edges = new int[2];
+    ArrayDeque<Vertex> work = new ArrayDeque<Vertex>(Arrays.asList(RECEIVERS));
+    while (!work.isEmpty()) {
+      Vertex r = work.poll();
+      if (receiverGone[r.id]) continue;
+      Vertex s = partnerOf[r.id];
+      List<Vertex> touched = new ArrayList<Vertex>();
+
+      if (r.EDGES.length == 1 || s.EDGES.length == 1) {
+        Step step = new Step();
+        step.rule = FORCED_MATCH;
+        step.r = r;
+        step.s = s;
+        for (Edge e : r.EDGES) {
+          if (e.sender == s) step.rs = e.cost;
+          else {
+            cutEdge(e.sender,e);
+            touched.add(e.sender);
+          }
+        }
+        for (Edge e : s.EDGES) {
+          if (e.receiver == r) continue;
+          cutEdge(e.receiver,e);
+          touched.add(e.receiver);
+        }
+        vertices[FORCED_MATCH] += 2;
+        edges[FORCED_MATCH] += r.EDGES.length + s.EDGES.length - 1;
+        receiverGone[r.id] = senderGone[s.id] = true;
+        steps.add(step);
+      }
+      else if (r.EDGES.length == 2) {
+        Edge rs = r.EDGES[0].sender == s ? r.EDGES[0] : r.EDGES[1];
+        Edge rt = r.EDGES[0].sender == s ? r.EDGES[1] : r.EDGES[0];
+        Vertex t = rt.sender;
+        if (t.EDGES.length != 2) continue;
+        Vertex q = partnerOfSender[t.id];
+        Edge qt = t.EDGES[0] == rt ? t.EDGES[1] : t.EDGES[0];
+        assert qt.receiver == q;
+
+        Step step = new Step();
+        step.rule = FORCED_PAIR;
+        step.r = r;
+        step.s = s;
+        step.t = t;
+        step.q = q;
+        step.rs = rs.cost;
+        step.qt = qt.cost;
+        step.rt = rt.cost;
+        long noTrade = rs.cost + qt.cost - rt.cost;
+
+        Edge qs = null;
+        for (Edge e : q.EDGES)
+          if (e.sender == s) qs = e;
+        saveEdges(q);
+        saveEdges(s);
+        if (qs == null) {
+          // q's no-trade edge now leads to s
+          qs = new Edge(q,s,noTrade);
+          q.EDGES = q.EDGES.clone();
+          for (int i = 0; i < q.EDGES.length; i++)
+            if (q.EDGES[i] == qt) q.EDGES[i] = qs;
+          s.EDGES = s.EDGES.clone();
+          for (int i = 0; i < s.EDGES.length; i++)
+            if (s.EDGES[i] == rs) s.EDGES[i] = qs;
+          edges[FORCED_PAIR] += 2;
+        }
+        else {
+          step.swap = qs.cost <= noTrade;
+          if (!step.swap) {
+            saveCost(qs);
+            qs.cost = noTrade;
+          }
+          q.EDGES = withoutEdge(q.EDGES,qt);
+          s.EDGES = withoutEdge(s.EDGES,rs);
+          edges[FORCED_PAIR] += 3;
+        }
+        step.qs = qs.cost;
+        s.minimumInCost = minimumInCost(s);
+        partnerOf[q.id] = s;
+        partnerOfSender[s.id] = q;
+        vertices[FORCED_PAIR] += 2;
+        receiverGone[r.id] = senderGone[t.id] = true;
+        steps.add(step);
+        touched.add(q);
+        touched.add(s);
+      }
+      else continue;
+
+      // Anything next to a change may now fit one of the rules
+      for (Vertex v : touched) {
+        if (v.type == VertexType.RECEIVER) work.push(v);
+        else if (!senderGone[v.id]) {
+          work.push(partnerOfSender[v.id]);
+          if (v.EDGES.length == 2)
+            for (Edge e : v.EDGES) work.push(e.receiver);
+        }
       }
+    }
+
+    RECEIVERS = withoutGone(RECEIVERS,receiverGone);
+    SENDERS = withoutGone(SENDERS,senderGone);
+    reductionCounts = new int[] {
+      vertices[FORCED_PAIR], edges[FORCED_PAIR], vertices[FORCED_MATCH], edges[FORCED_MATCH]
+    };
+    reductionStats = describeReductions(reductionCounts);
+  }
+
+  // The reduction statistics for the given counts (see reductionCounts)
+  static String describeReductions(int[] counts) {
+    return counts[0]/2 + " forced pairs (" + counts[0] + " vertices, " + counts[1]
+        + " edges), " + counts[2]/2 + " forced matches (" + counts[2] + " vertices, "
+        + counts[3] + " edges)";
+  }
 
-      // Update the prices
-      for (Vertex v : RECEIVERS) v.price += v.heapEntry.cost();
-      for (Vertex v : SENDERS)   v.price += v.heapEntry.cost();
+  // What the steps of reduce() add to the cost of a matching when expand()
+  // turns it into a matching of the whole graph. A forced match adds r->s.
+  // A forced pair adds r->t: either r gets t and nothing else changes, or
+  // r->s and q->t replace q->s, which reduce() priced at
+  // cost(r,s) + cost(q,t) - cost(r,t).
+  private long forcedCost() {
+    long cost = 0;
+    for (Step step : steps) cost += step.rule == FORCED_MATCH ? step.rs : step.rt;
+    return cost;
+  }
+
+  // Turn the matching of the reduced graph into one of the whole graph, and
+  // put the graph back the way it was before reduce()
+  private void expand() {
+    for (int i = steps.size()-1; i >= 0; i--) {
+      Step step = steps.get(i);
+      if (step.rule == FORCED_MATCH)
+        link(step.r,step.s,step.rs);
+      else if (step.q.match != step.s)
+        link(step.r,step.t,step.rt); // q and s both trade elsewhere
+      else if (step.swap)
+        link(step.r,step.t,step.rt); // q keeps s
+      else {
+        link(step.r,step.s,step.rs);
+        link(step.q,step.t,step.qt);
+      }
     }
+    for (int i = changes.size()-1; i >= 0; i--) {
+      Change change = changes.get(i);
+      if (change.vertex != null) {
+        change.vertex.EDGES = change.edges;
+        change.vertex.minimumInCost = change.minimumInCost;
+      }
+      else change.edge.cost = change.cost;
+    }
+    RECEIVERS = fullReceivers;
+    SENDERS = fullSenders;
+    fullReceivers = fullSenders = null;
+    steps = null;
+    changes = null;
+    partnerOf = partnerOfSender = null;
+    receiverGone = senderGone = null;
+  }
 
-    // Bypass dummy entries that are matched and match the dummies to themselves
-    elideDummies();
+  private void link(Vertex receiver,Vertex sender,long cost) {
+    receiver.match = sender;
+    sender.match = receiver;
+    receiver.matchCost = cost;
+  }
+
+  // Remove edge from vertex, remembering how it was
+  private void cutEdge(Vertex vertex,Edge edge) {
+    saveEdges(vertex);
+    vertex.EDGES = withoutEdge(vertex.EDGES,edge);
+    if (vertex.type == VertexType.SENDER) vertex.minimumInCost = minimumInCost(vertex);
+  }
+
+  private void saveEdges(Vertex vertex) {
+    Change change = new Change();
+    change.vertex = vertex;
+    change.edges = vertex.EDGES;
+    change.minimumInCost = vertex.minimumInCost;
+    changes.add(change);
+  }
+
+  private void saveCost(Edge edge) {
+    Change change = new Change();
+    change.edge = edge;
+    change.cost = edge.cost;
+    changes.add(change);
+  }
+
+  private static long minimumInCost(Vertex sender) {
+    long min = Long.MAX_VALUE;
+    for (Edge e : sender.EDGES) min = Math.min(e.cost,min);
+    return min;
+  }
+
+  private static Vertex[] withoutGone(Vertex[] vertices,boolean[] gone) {
+    int count = 0;
+    Vertex[] result = new Vertex[vertices.length];
+    for (Vertex v : vertices)
+      if (!gone[v.id]) result[count++] = v;
+    return Arrays.copyOf(result,count);
+  }
+
+  // Walk the current matching and gather each trade loop as a list of
+  // receivers. Receivers matched to their own twin do not trade.
+  List<List<Vertex>> collectCycles() {
+    return collectCycles(RECEIVERS);
+  }
 
+  // As above, visiting the receivers in the given order
+  private List<List<Vertex>> collectCycles(Vertex[] order) {
     advanceTimestamp();
     List<List<Vertex>> cycles = new ArrayList<List<Vertex>>();
 
-    for (Vertex vertex : RECEIVERS) {
+    for (Vertex vertex : order) {
       if (vertex.mark == timestamp || vertex.match == vertex.twin) continue;
 
       List<Vertex> cycle = new ArrayList<Vertex>();
@@ -414,13 +1745,54 @@ public class Graph {
       cycles.add(cycle);
     }
     return cycles;
-  } // end findCycles
+  }
+
+  // The sum of the squared sizes of the trade loops in the current matching,
+  // found without collecting them
+  int sumOfSquares() {
+    advanceTimestamp();
+    int sum = 0;
+    for (Vertex vertex : RECEIVERS) {
+      if (vertex.mark == timestamp || vertex.match == vertex.twin) continue;
+      int size = 0;
+      for (Vertex v = vertex; v.mark != timestamp; v = v.match.twin) {
+        v.mark = timestamp;
+        size++;
+      }
+      sum += size*size;
+    }
+    return sum;
+  }
+
+  // The sizes of the trade loops in the current matching, in no particular order
+  int[] cycleSizes() {
+    advanceTimestamp();
+    int[] sizes = new int[RECEIVERS.length];
+    int count = 0;
+    for (Vertex vertex : RECEIVERS) {
+      if (vertex.mark == timestamp || vertex.match == vertex.twin) continue;
+      int size = 0;
+      for (Vertex v = vertex; v.mark != timestamp; v = v.match.twin) {
+        v.mark = timestamp;
+        size++;
+      }
+      sizes[count++] = size;
+    }
+    return Arrays.copyOf(sizes, count);
+  }
 
   //////////////////////////////////////////////////////////////////////
 
-  private Random random = new Random();
+  // The seed is always chosen explicitly (even when no SEED option is given)
+  // so that a checkpointed run can replay its shuffles after a restart.
+  private long seed = new Random().nextLong();
+  private Random random = new Random(seed);
 
-  void setSeed(long seed) { random.setSeed(seed); }
+  void setSeed(long seed) {
+    this.seed = seed;
+    random.setSeed(seed);
+  }
+  long getSeed() { return seed; }
 
   <T> void shuffle(T[] a) {
     for (int i = a.length; i > 1; i--) {
@@ -456,23 +1828,107 @@ public class Graph {
     }
   }
 
+  // The matching kept by saveMatches(), by receiver id: the id of each
+  // receiver's sender (-1 for receivers that are not part of the solved
+  // graph) and its match cost. The order of RECEIVERS at the time is kept too,
+  // so that savedCycles() lists the trade loops exactly as collectCycles()
+  // would have listed them then, whatever shuffles came after.
+  private int[] savedMatch;
+  private long[] savedMatchCost;
+  private Vertex[] savedOrder;
+
   void saveMatches() {
+    int size = receivers.size();
+    if (savedMatch == null || savedMatch.length != size) {
+      savedMatch = new int[size];
+      savedMatchCost = new long[size];
+    }
+    Arrays.fill(savedMatch, -1);
     for (Vertex v : RECEIVERS) {
-      v.savedMatch = v.match;
-      v.savedMatchCost = v.matchCost;
+      savedMatch[v.id] = v.match.id;
+      savedMatchCost[v.id] = v.matchCost;
     }
-    for (Vertex v : SENDERS) {
-      v.savedMatch = v.match;
+    // Items removed by fixEdges() stay out of trading, so a matching saved
+    // after fixing still fits the unfixed graph of a cached or resumed run
+    for (Vertex v : fixedOut) {
+      savedMatch[v.id] = v.twin.id;
+      savedMatchCost[v.id] = v.matchCost;
     }
+    if (savedOrder == null || savedOrder.length != RECEIVERS.length) savedOrder = new Vertex[RECEIVERS.length];
+    System.arraycopy(RECEIVERS, 0, savedOrder, 0, RECEIVERS.length);
   }
   void restoreMatches() {
     for (Vertex v : RECEIVERS) {
-      v.match = v.savedMatch;
-      v.matchCost = v.savedMatchCost;
+      Vertex sender = senders.get(savedMatch[v.id]);
+      v.match = sender;
+      sender.match = v;
+      v.matchCost = savedMatchCost[v.id];
     }
-    for (Vertex v : SENDERS) {
-      v.match = v.savedMatch;
+  }
+
+  // The trade loops of the saved matching, which must have been restored
+  List<List<Vertex>> savedCycles() {
+    return collectCycles(savedOrder);
+  }
+
+  // Write the saved matching in a compact form: for every receiver (in the
+  // order it was added) the id of its saved sender, or -1 if the receiver is
+  // not part of the solved graph, followed by its saved match cost; then the
+  // ids of the receivers in their saved order, so that savedCycles() lists
+  // the loops of a resumed or cached run just as the original run did.
+  void writeSavedMatches(DataOutputStream out) throws IOException {
+    out.writeInt(savedMatch.length);
+    for (int i = 0; i < savedMatch.length; i++) {
+      out.writeInt(savedMatch[i]);
+      out.writeLong(savedMatchCost[i]);
+    }
+    out.writeInt(savedOrder.length);
+    for (Vertex v : savedOrder) out.writeInt(v.id);
+  }
+
+  // Inverse of writeSavedMatches(). The graph must have been built from the
+  // same input and cleaned up the same way, or an IOException is thrown.
+  void readSavedMatches(DataInputStream in) throws IOException {
+    int size = receivers.size();
+    if (in.readInt() != size)
+      throw new IOException("saved matching does not fit this graph");
+    int[] match = new int[size];
+    long[] cost = new long[size];
+    for (int i = 0; i < size; i++) {
+      match[i] = in.readInt();
+      cost[i] = in.readLong();
+      if (match[i] < -1 || match[i] >= senders.size())
+        throw new IOException("saved matching does not fit this graph");
     }
+    boolean[] taken = new boolean[senders.size()];
+    for (Vertex v : RECEIVERS) {
+      int id = match[v.id];
+      if (id == -1 || taken[id])
+        throw new IOException("saved matching does not fit this graph");
+      taken[id] = true;
+    }
+
+    // The order must list every receiver that trades, and only receivers of
+    // the solved graph. (After fixEdges() it leaves out the items taken out.)
+    Vertex[] order = new Vertex[in.readInt()];
+    if (order.length > RECEIVERS.length)
+      throw new IOException("saved matching does not fit this graph");
+    boolean[] listed = new boolean[size];
+    for (int i = 0; i < order.length; i++) {
+      int id = in.readInt();
+      if (id < 0 || id >= size || match[id] == -1 || listed[id])
+        throw new IOException("saved matching does not fit this graph");
+      listed[id] = true;
+      order[i] = receivers.get(id);
+    }
+    for (Vertex v : RECEIVERS) {
+      if (match[v.id] != v.id && !listed[v.id])
+        throw new IOException("saved matching does not fit this graph");
+    }
+
+    savedMatch = match;
+    savedMatchCost = cost;
+    savedOrder = order;
   }
 
 } // end Graph
@@ -0,0 +1,98 @@
+// Timing the solver with and without --reorder
+//
+//     java LocalityBenchmark wants.txt [solves] [both|plain|reordered]
+//
+// Reads a want file, prunes the graph as TradeMaximizer would, and then
+// times a number of solves (each after a shuffle, as with ITERATIONS) with
+// the graph as read, with the graph laid out by Graph.reorder(), or both.
+// For each layout it also shows how close together the two ends of the
+// average edge are in the price arrays, and how many edges stay within one
+// cache line of them, which is what reorder() sets out to improve. The
+// solves must find the same matchings either way, and are checked for that.
+//
+// The JVM has no access to hardware counters. To count the cache misses
+// themselves, time one layout per run under a profiler, e.g.
+//
+//     perf stat -e cache-references,cache-misses java LocalityBenchmark wants.txt 10 plain
+//     perf stat -e cache-references,cache-misses java LocalityBenchmark wants.txt 10 reordered
+//
+// Running both layouts in one JVM is fine for a quick comparison, but the
+// second one benefits from the compilation done during the first.
+
+import java.io.*;
+import java.util.*;
+
+public class LocalityBenchmark {
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.out.println("Usage: java LocalityBenchmark wants.txt [solves] [both|plain|reordered]");
+      return;
+    }
+    File file = new File(args[0]);
+    int solves = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    String layouts = args.length > 2 ? args[2] : "both";
+
+    int[] expected = null;
+    for (String layout : new String[] { "plain", "reordered" }) {
+      if (!layouts.equals("both") && !layouts.equals(layout)) continue;
+      int[] found = run(file, layout.equals("reordered"), solves);
+      if (expected == null) expected = found;
+      else if (!Arrays.equals(expected, found))
+        System.out.println("The two layouts found different matchings!");
+    }
+  }
+
+  // Solve the trade the given number of times, printing the locality of the
+  // graph and the times taken. Returns the sum of squares of every solve.
+  static int[] run(File file,boolean reorder,int solves) throws IOException {
+    TradeMaximizer tm = new TradeMaximizer();
+    tm.out = new PrintStream(new OutputStream() {
+      public void write(int b) {}
+      public void write(byte[] b,int offset,int length) {}
+    });
+    tm.input = new FileInputStream(file);
+    tm.reorder = reorder;
+    long start = System.nanoTime();
+    try {
+      List< String[] > wantLists = tm.readWantLists();
+      tm.buildGraph(wantLists);
+      tm.pruneGraph();
+    }
+    finally {
+      tm.input.close();
+    }
+    long built = System.nanoTime() - start;
+    Graph graph = tm.graph;
+
+    double[] locality = graph.edgeLocality();
+    System.out.println(String.format("%-9s %d items, average edge gap %.1f slots, %.1f%% of edges within a cache line",
+                                     reorder ? "reordered" : "plain", graph.RECEIVERS.length,
+                                     locality[0], 100*locality[1]));
+
+    System.gc();
+    int[] sumsOfSquares = new int[solves];
+    long[] times = new long[solves];
+    for (int i = 0; i < solves; i++) {
+      if (i > 0) graph.shuffle();
+      long begin = System.nanoTime();
+      graph.solve();
+      times[i] = System.nanoTime() - begin;
+      tm.checkOptimality();
+      sumsOfSquares[i] = graph.sumOfSquares();
+    }
+
+    long[] sorted = times.clone();
+    Arrays.sort(sorted);
+    System.out.println(String.format("%-9s build %8.1f ms, solve min %8.1f ms, median %8.1f ms, total %9.1f ms",
+                                     "", built/1e6, sorted[0]/1e6, sorted[solves/2]/1e6, sum(times)/1e6));
+    return sumsOfSquares;
+  }
+
+  static long sum(long[] values) {
+    long total = 0;
+    for (long value : values) total += value;
+    return total;
+  }
+
+} // end LocalityBenchmark
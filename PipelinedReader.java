@@ -0,0 +1,189 @@
+// Reading the want lists in a pipeline
+//
+// readWantLists() checks and splits every line on the main thread. When
+// there are threads to spare, PipelinedReader keeps the input side of that
+// work off the main thread, so the three stages overlap:
+//   - a reader thread pulls raw blocks of bytes from the input (typically a
+//     pipe on standard input) into a bounded queue
+//   - a decoder thread turns those blocks back into a stream and reads lines
+//     from it exactly as readWantLists() always has: through CompressedInput,
+//     an InputStreamReader in the default charset and BufferedReader.readLine()
+//   - the main thread takes the finished lines in batches and validates them
+// Since the decoding stage sees the very same bytes through the very same
+// classes, the lines (and so every error message and line number) are
+// identical to reading without the pipeline. An I/O error is passed along
+// the pipeline in place of the data that could not be read, and is thrown by
+// readLine() after all the lines before it.
+//
+// With a single thread, lines are read directly on the calling thread.
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class PipelinedReader {
+
+  static final int BLOCK_SIZE = 1 << 16; // bytes per read from the input
+  static final int BLOCKS = 16;          // blocks of bytes queued at most
+  static final int BATCH_SIZE = 512;     // lines handed over at a time
+  static final int BATCHES = 16;         // batches of lines queued at most
+
+  private static final Object END = new Object(); // marks the end of a queue
+
+  private BufferedReader direct; // used instead of the pipeline with one thread
+
+  private BlockingQueue<Object> blocks;  // byte[], then an IOException or END
+  private BlockingQueue<Object> batches; // String[], then an IOException or END
+  private Thread reader, decoder;
+  private String[] batch = new String[0];
+  private int next = 0;
+  private boolean ended = false;
+
+  PipelinedReader(final InputStream in,final int threads) throws IOException {
+    if (threads <= 1) {
+      direct = new BufferedReader(new InputStreamReader(CompressedInput.open(in,threads)));
+      return;
+    }
+
+    blocks = new ArrayBlockingQueue<Object>(BLOCKS);
+    batches = new ArrayBlockingQueue<Object>(BATCHES);
+
+    reader = new Thread("input-reader") {
+      public void run() {
+        try {
+          try {
+            for (;;) {
+              byte[] block = new byte[BLOCK_SIZE];
+              int n = in.read(block);
+              if (n < 0) break;
+              if (n > 0) blocks.put(n == BLOCK_SIZE ? block : Arrays.copyOf(block, n));
+            }
+            blocks.put(END);
+          }
+          catch (IOException e) {
+            blocks.put(e);
+          }
+        }
+        catch (InterruptedException e) {
+          // closed before the end of the input
+        }
+      }
+    };
+
+    decoder = new Thread("input-decoder") {
+      public void run() {
+        try {
+          List<String> lines = new ArrayList<String>(BATCH_SIZE);
+          try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+              CompressedInput.open(new BlockStream(),threads)));
+            for (String line; (line = in.readLine()) != null; ) {
+              lines.add(line);
+              if (lines.size() == BATCH_SIZE) {
+                batches.put(lines.toArray(new String[lines.size()]));
+                lines.clear();
+              }
+            }
+            if (lines.size() > 0) batches.put(lines.toArray(new String[lines.size()]));
+            batches.put(END);
+          }
+          catch (IOException e) {
+            if (lines.size() > 0) batches.put(lines.toArray(new String[lines.size()]));
+            batches.put(e);
+          }
+        }
+        catch (InterruptedException e) {
+          // closed before the end of the input
+        }
+      }
+    };
+
+    // Neither thread may keep the JVM alive, e.g. if the input never ends
+    reader.setDaemon(true);
+    decoder.setDaemon(true);
+    reader.start();
+    decoder.start();
+  }
+
+  // The next line, as BufferedReader.readLine() would return it, or null at
+  // the end of the input
+  String readLine() throws IOException {
+    if (direct != null) return direct.readLine();
+    while (next == batch.length) {
+      if (ended) return null;
+      Object item;
+      try {
+        item = batches.take();
+      }
+      catch (InterruptedException e) {
+        throw new InterruptedIOException("interrupted while reading input");
+      }
+      if (item == END) {
+        ended = true;
+        return null;
+      }
+      if (item instanceof IOException) {
+        ended = true;
+        throw (IOException) item;
+      }
+      batch = (String[]) item;
+      next = 0;
+    }
+    return batch[next++];
+  }
+
+  // Stop the pipeline, e.g. after a fatal error part way through the input.
+  // The input itself is left open, as it is without the pipeline.
+  void close() {
+    if (direct != null) return;
+    ended = true;
+    reader.interrupt();
+    decoder.interrupt();
+  }
+
+  // The blocks of bytes taken by the reader thread, as a stream again
+  private class BlockStream extends InputStream {
+    private byte[] block = new byte[0];
+    private int position = 0;
+    private boolean atEnd = false;
+
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    public int read(byte[] buffer,int offset,int length) throws IOException {
+      if (length == 0) return 0;
+      while (position == block.length) {
+        if (atEnd) return -1;
+        Object item;
+        try {
+          item = blocks.take();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt(); // so the decoder stops at its next put()
+          throw new InterruptedIOException("interrupted while reading input");
+        }
+        if (item == END) {
+          atEnd = true;
+          return -1;
+        }
+        if (item instanceof IOException) {
+          atEnd = true;
+          throw (IOException) item;
+        }
+        block = (byte[]) item;
+        position = 0;
+      }
+      int n = Math.min(length, block.length - position);
+      System.arraycopy(block, position, buffer, offset, n);
+      position += n;
+      return n;
+    }
+
+    public int available() {
+      return block.length - position;
+    }
+  }
+
+} // end PipelinedReader
@@ -0,0 +1,82 @@
+// Bulk array operations used by Graph.findCycles()
+//
+// After every round of findCycles(), each vertex's price goes up by its
+// distance from the last dijkstra(). Prices and distances are kept in
+// parallel long arrays, so the update is a plain element-wise addition that
+// the Vector API (jdk.incubator.vector) can do several lanes at a time.
+//
+// The vectorised kernel lives in vector/VectorPriceKernel.java, because it
+// can only be compiled and run with the incubator module added:
+//
+//     javac --add-modules jdk.incubator.vector -d . vector/VectorPriceKernel.java
+//     java --add-modules jdk.incubator.vector TradeMaximizer < wants.txt
+//
+// At startup INSTANCE is the vectorised kernel if that class can be loaded,
+// and otherwise the plain scalar loop below. Setting the system property
+// tm.kernel=scalar forces the scalar loop.
+//
+// "java PriceKernel [length] [repeats]" times both kernels against each
+// other and checks that they agree.
+
+import java.util.*;
+
+public abstract class PriceKernel {
+
+  static final PriceKernel INSTANCE = load();
+
+  // into[i] += amounts[i] for every i < n
+  abstract void add(long[] into,long[] amounts,int n);
+
+  abstract String name();
+
+  static class Scalar extends PriceKernel {
+    void add(long[] into,long[] amounts,int n) {
+      for (int i = 0; i < n; i++) into[i] += amounts[i];
+    }
+    String name() { return "scalar"; }
+  }
+
+  static PriceKernel load() {
+    if (!"scalar".equals(System.getProperty("tm.kernel"))) {
+      try {
+        return (PriceKernel) Class.forName("VectorPriceKernel").getDeclaredConstructor().newInstance();
+      }
+      catch (Throwable e) {
+        // Not compiled, or the incubator module is missing; use the scalar loop
+      }
+    }
+    return new Scalar();
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  public static void main(String[] args) {
+    int length = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int repeats = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+    List<PriceKernel> kernels = new ArrayList<PriceKernel>();
+    kernels.add(new Scalar());
+    if (!(INSTANCE instanceof Scalar)) kernels.add(INSTANCE);
+    else System.out.println("Vector kernel not available; timing the scalar kernel only");
+
+    Random random = new Random(1);
+    long[] amounts = new long[length];
+    for (int i = 0; i < length; i++) amounts[i] = random.nextInt(1000000);
+
+    long[] expected = null;
+    for (PriceKernel kernel : kernels) {
+      long[] prices = new long[length];
+      for (int i = 0; i < repeats/10; i++) kernel.add(prices,amounts,length); // warm up
+      prices = new long[length];
+      long start = System.nanoTime();
+      for (int i = 0; i < repeats; i++) kernel.add(prices,amounts,length);
+      long elapsed = System.nanoTime() - start;
+      System.out.println(String.format("%-8s %8.3f ns/element", kernel.name(),
+                                       elapsed / ((double)length*repeats)));
+      if (expected == null) expected = prices;
+      else if (!Arrays.equals(expected,prices))
+        System.out.println(kernel.name() + " kernel gives different results!");
+    }
+  }
+
+} // end PriceKernel
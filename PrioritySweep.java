@@ -0,0 +1,174 @@
+// What-if comparison of priority settings
+//
+// Started by "TradeMaximizer --sweep" (compare every priority scheme with
+// the steps given in the want file) or by one or more --sweep=SPEC arguments,
+// where SPEC lists options separated by commas, e.g.
+//     --sweep=LINEAR-PRIORITIES,SMALL-STEP=2 --sweep=SCALED-PRIORITIES
+// Settings that a SPEC leaves out are taken from the want file.
+//
+// The want lists are parsed and pruned only once, since which edges are
+// impossible depends only on who wants what. Each variant then gets a copy of
+// the pruned graph whose edge costs are recomputed from the rank of every
+// want, and the variants are solved in parallel, up to --threads at a
+// time. Instead of the usual report, a table comparing the variants is
+// printed.
+//
+// Memory: every variant being solved holds a full copy of the pruned graph
+// (about CapacityEstimate.BYTES_PER_ITEM per item and BYTES_PER_EDGE per
+// edge), because each solve keeps its own matching, prices and shuffled edge
+// order on the vertices and edges. A copy is made when its variant starts
+// and dropped when it is done, so the peak is one copy per variant solved
+// at the same time, not one per variant. On top of --threads, the number
+// solved at once is limited to the copies that fit in the heap next to what
+// is already in use; with too little heap for even one, the variants are
+// solved one at a time.
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class PrioritySweep {
+
+  // One combination of settings to try
+  static class Variant implements Graph.CostFunction {
+    String label;
+    int priorityScheme;
+    int smallStep;
+    int bigStep;
+    long nonTradeCost;
+    Graph graph; // the graph the edges come from
+
+    // Results
+    int trades;
+    int groups;
+    long totalCost;
+    long sumOfSquares;
+
+    public long cost(Graph.Edge edge) {
+      // No-trade edges, and all edges out of a dummy item, have a fixed cost
+      if (edge.sender == edge.receiver.twin || edge.receiver.isDummy)
+        return nonTradeCost;
+      long rank = 1 + edge.smallSteps*(long)smallStep + edge.bigSteps*(long)bigStep;
+      long cost = TradeMaximizer.rankCost(priorityScheme,rank);
+      if (priorityScheme == TradeMaximizer.SCALED_PRIORITIES)
+        cost = TradeMaximizer.scaledCost(cost,graph.wantCount(edge.receiver));
+      return cost;
+    }
+  }
+
+  static final String[] SCHEME_NAMES = {
+    "NO-PRIORITIES", "LINEAR-PRIORITIES", "TRIANGLE-PRIORITIES",
+    "SQUARE-PRIORITIES", "SCALED-PRIORITIES"
+  };
+
+  private TradeMaximizer tm;
+  private List<Variant> variants = new ArrayList<Variant>();
+
+  PrioritySweep(TradeMaximizer tm,List<String> specs) {
+    this.tm = tm;
+    if (tm.priorityScheme == TradeMaximizer.EXPLICIT_PRIORITIES)
+      tm.fatalError("--sweep cannot be used with EXPLICIT-PRIORITIES");
+    if (specs.isEmpty()) {
+      for (String name : SCHEME_NAMES) variants.add(parse(name));
+    }
+    else {
+      for (String spec : specs) variants.add(parse(spec));
+    }
+  }
+
+  // Turn a SPEC into a variant, starting from the want file's settings
+  Variant parse(String spec) {
+    Variant v = new Variant();
+    v.graph = tm.graph;
+    v.priorityScheme = tm.priorityScheme;
+    v.smallStep = tm.smallStep;
+    v.bigStep = tm.bigStep;
+    v.nonTradeCost = tm.nonTradeCost;
+
+    for (String option : spec.toUpperCase().split("[,\\s]+")) {
+      if (option.length() == 0) continue;
+      int scheme = Arrays.asList(SCHEME_NAMES).indexOf(option);
+      if (scheme >= 0)
+        v.priorityScheme = scheme;
+      else if (option.matches("SMALL-STEP=\\d+"))
+        v.smallStep = Integer.parseInt(option.substring(11));
+      else if (option.matches("BIG-STEP=\\d+"))
+        v.bigStep = Integer.parseInt(option.substring(9));
+      else if (option.matches("NONTRADE-COST=[1-9]\\d*"))
+        v.nonTradeCost = Long.parseLong(option.substring(14));
+      else
+        tm.fatalError("Bad --sweep setting \""+option+"\"");
+    }
+
+    v.label = SCHEME_NAMES[v.priorityScheme];
+    if (v.priorityScheme != TradeMaximizer.NO_PRIORITIES)
+      v.label += " SMALL-STEP=" + v.smallStep + " BIG-STEP=" + v.bigStep;
+    if (v.nonTradeCost != 1000000000L)
+      v.label += " NONTRADE-COST=" + v.nonTradeCost;
+    return v;
+  }
+
+  // Solve every variant of the (pruned) graph and print the comparison
+  void run() {
+    int parallel = Math.min(Math.min(tm.threads, variants.size()), copiesThatFit());
+    ExecutorService pool = Executors.newFixedThreadPool(parallel);
+    List< Future<?> > futures = new ArrayList< Future<?> >();
+    for (final Variant v : variants) {
+      futures.add(pool.submit(new Runnable() {
+        public void run() { solve(v); }
+      }));
+    }
+    pool.shutdown();
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      }
+      catch (ExecutionException e) {
+        // A failed optimality check has been reported already
+        if (e.getCause() instanceof TradeMaximizer.FatalError) throw (TradeMaximizer.FatalError) e.getCause();
+        tm.fatalError("Sweep failed: " + e.getCause());
+      }
+      catch (InterruptedException e) {
+        tm.fatalError("Sweep failed: " + e);
+      }
+    }
+
+    int width = "SETTINGS".length();
+    for (Variant v : variants) width = Math.max(width, v.label.length());
+    String format = "%-" + width + "s %8s %8s %14s %14s";
+    tm.out.println("PRIORITY SWEEP (" + variants.size() + " variants):");
+    tm.out.println();
+    tm.out.println(String.format(format, "SETTINGS", "TRADES", "GROUPS", "TOTAL COST", "SUM SQUARES"));
+    for (Variant v : variants) {
+      tm.out.println(String.format(format, v.label, v.trades, v.groups, v.totalCost, v.sumOfSquares));
+    }
+    tm.out.println();
+  }
+
+  // How many copies of the pruned graph fit in the heap on top of what is in
+  // use now (at least one), going by the constants of CapacityEstimate
+  int copiesThatFit() {
+    long edges = 0;
+    for (Graph.Vertex v : tm.graph.RECEIVERS) edges += v.EDGES.length;
+    long copyBytes = tm.graph.RECEIVERS.length*CapacityEstimate.BYTES_PER_ITEM
+                     + edges*CapacityEstimate.BYTES_PER_EDGE;
+    Runtime runtime = Runtime.getRuntime();
+    long free = (long)(CapacityEstimate.maxHeap() * CapacityEstimate.HEAP_FRACTION)
+                - (runtime.totalMemory() - runtime.freeMemory());
+    return (int)Math.max(1, Math.min(free / Math.max(copyBytes, 1), Integer.MAX_VALUE));
+  }
+
+  // Solve one variant just like TradeMaximizer.run() does, keeping the
+  // iteration with the smallest sum of squares
+  void solve(Variant v) {
+    Graph graph = tm.graph.copy(v);
+    List<List<Graph.Vertex>> bestCycles = tm.bestOfIterations(graph);
+
+    for (List<Graph.Vertex> cycle : bestCycles) {
+      v.trades += cycle.size();
+      v.sumOfSquares += (long)cycle.size()*cycle.size();
+      for (Graph.Vertex vertex : cycle) v.totalCost += vertex.matchCost;
+    }
+    v.groups = bestCycles.size();
+  }
+
+} // end PrioritySweep
@@ -0,0 +1,228 @@
+// On-disk cache of finished matchings
+//
+// Enabled by "--cache=DIR" (and bypassed again by "--no-cache"). Each entry
+// is keyed by a hash of the parsed want lists and the options that can
+// influence the matching, so resubmitting a want file that differs only in
+// whitespace, comments or display options finds the earlier result and skips
+// the solve altogether. Entries are ordinary files in DIR; their modification
+// times serve as last-use times, and the least recently used entries are
+// deleted whenever the cache grows beyond its size limit.
+//
+// An entry holds everything the report shows about the solve: the matching,
+// the receiver order its loops are listed in, the progress lines of the
+// iterations and the reduction and fixing statistics, so a cached run prints
+// the same report as the run that stored it.
+//
+// A run whose result is random (ITERATIONS without a SEED) is not cached,
+// and neither is a run with --workers, whose result can differ from that of
+// a run in a single process (see ShardedSolver).
+
+import java.io.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+public class ResultCache {
+
+  static final int MAGIC = 0x544d4352; // "TMCR"
+  static final int VERSION = 3;
+  static final String SUFFIX = ".match";
+
+  // Options that only change how results are displayed
+  static final String[] DISPLAY_OPTIONS = {
+    "HIDE-ERRORS", "HIDE-REPEATS", "HIDE-LOOPS", "HIDE-SUMMARY", "HIDE-NONTRADES",
+    "HIDE-STATS", "SHOW-MISSING", "SORT-BY-ITEM", "SHOW-ELAPSED-TIME"
+  };
+
+  private File dir;
+  private long maxBytes;
+
+  String status = "disabled"; // what happened to this run, for the stats line
+
+  ResultCache(File dir,long maxBytes) {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  // Compute the cache key for a trade, or return null if its result should
+  // not be cached. Must be called before buildGraph() changes the lists.
+  static byte[] key(TradeMaximizer tm,List<String[]> wantLists) {
+    List<String> options = new ArrayList<String>();
+    boolean seeded = false;
+    for (String option : tm.options) {
+      if (option.startsWith("SEED=")) seeded = true;
+      if (!Arrays.asList(DISPLAY_OPTIONS).contains(option)) options.add(option);
+    }
+    if (tm.iterations > 1 && !seeded) return null;
+    Collections.sort(options);
+
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      StringBuilder text = new StringBuilder();
+      text.append(tm.version).append('\n');
+      text.append(tm.priorityScheme).append(' ').append(tm.smallStep).append(' ')
+          .append(tm.bigStep).append(' ').append(tm.nonTradeCost).append(' ')
+          .append(tm.iterations).append(' ').append(seeded ? tm.graph.getSeed() : 0).append('\n');
+      for (String option : options) text.append(option).append(' ');
+      text.append('\n');
+      if (tm.officialNames != null) {
+        List<String> names = new ArrayList<String>(tm.officialNames);
+        Collections.sort(names);
+        text.append("!OFFICIAL");
+        for (String name : names) text.append(' ').append(name);
+        text.append('\n');
+      }
+      update(digest, text);
+      for (String[] list : wantLists) {
+        for (String token : list) text.append(token).append(' ');
+        text.append('\n');
+        if (text.length() > 1 << 13) update(digest, text);
+      }
+      update(digest, text);
+      return digest.digest();
+    }
+    catch (Exception e) {
+      throw new RuntimeException(e); // SHA-256 and UTF-8 are always available
+    }
+  }
+
+  private static void update(MessageDigest digest,StringBuilder text) throws IOException {
+    digest.update(text.toString().getBytes("UTF-8"));
+    text.setLength(0);
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  // Load the matching stored under key into the graph's saved matching, and
+  // the progress lines and statistics into tm. Returns false if there is no
+  // usable entry.
+  boolean load(byte[] key,TradeMaximizer tm) {
+    File file = entry(key);
+    if (!file.exists()) {
+      status = "miss";
+      return false;
+    }
+    try {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file), 1 << 16));
+      try {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION)
+          throw new IOException("not a cache entry");
+        byte[] stored = new byte[in.readInt()];
+        in.readFully(stored);
+        if (!Arrays.equals(stored, key))
+          throw new IOException("key mismatch");
+        tm.graph.readSavedMatches(in);
+        List<String> progress = new ArrayList<String>();
+        for (int count = in.readInt(); count > 0; count--) progress.add(in.readUTF());
+        String reductionStats = readOptional(in);
+        String fixingStats = readOptional(in);
+        tm.progress = progress;
+        tm.graph.reductionStats = reductionStats;
+        tm.graph.fixingStats = fixingStats;
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      file.delete(); // a damaged entry is no use to anybody
+      status = "miss";
+      return false;
+    }
+    file.setLastModified(System.currentTimeMillis()); // mark as recently used
+    status = "hit";
+    return true;
+  }
+
+  // Store the saved matching of tm's graph under key, with the progress lines
+  // and statistics shown, then trim the cache
+  void store(byte[] key,TradeMaximizer tm) {
+    File file = entry(key);
+    File tmp = null;
+    try {
+      dir.mkdirs();
+      // a unique name, as the trades of a batch can store at the same time
+      tmp = File.createTempFile(file.getName(), ".tmp", dir);
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(key.length);
+        out.write(key);
+        tm.graph.writeSavedMatches(out);
+        out.writeInt(tm.progress.size());
+        for (String line : tm.progress) out.writeUTF(line);
+        writeOptional(out, tm.graph.reductionStats);
+        writeOptional(out, tm.graph.fixingStats);
+      }
+      finally {
+        out.close();
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      status += ", stored";
+    }
+    catch (IOException e) {
+      if (tmp != null) tmp.delete();
+      status += ", not stored (" + e.getMessage() + ")";
+    }
+    evict();
+  }
+
+  private static void writeOptional(DataOutputStream out,String text) throws IOException {
+    out.writeBoolean(text != null);
+    if (text != null) out.writeUTF(text);
+  }
+
+  private static String readOptional(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  // Delete least recently used entries until the cache fits its limit
+  void evict() {
+    File[] files = dir.listFiles();
+    if (files == null) return;
+    List<File> entries = new ArrayList<File>();
+    long total = 0;
+    for (File file : files) {
+      if (!file.getName().endsWith(SUFFIX)) continue;
+      entries.add(file);
+      total += file.length();
+    }
+    final Map<File,Long> used = new HashMap<File,Long>();
+    for (File file : entries) used.put(file, file.lastModified());
+    Collections.sort(entries, new Comparator<File>() {
+      public int compare(File a,File b) { return used.get(a).compareTo(used.get(b)); }
+    });
+    for (int i = 0; total > maxBytes && i < entries.size(); i++) {
+      long length = entries.get(i).length();
+      if (entries.get(i).delete()) total -= length;
+    }
+  }
+
+  // One-line summary of the cache for the end of the report
+  String stats() {
+    int count = 0;
+    long total = 0;
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (!file.getName().endsWith(SUFFIX)) continue;
+        count++;
+        total += file.length();
+      }
+    }
+    return "Cache       = " + status + " (" + count + " entries, "
+        + (total+1023)/1024 + " of " + maxBytes/1024 + " KB)";
+  }
+
+  private File entry(byte[] key) {
+    StringBuilder name = new StringBuilder();
+    for (byte b : key) name.append(String.format("%02x", b & 0xff));
+    return new File(dir, name + SUFFIX);
+  }
+
+} // end ResultCache
@@ -0,0 +1,211 @@
+// Machine-readable export of a finished matching
+//
+// The text report is meant for people. Tools that produce shipping labels or
+// per-user mail should use one of these formats instead, which are written
+// straight from the matched vertices and do not depend on report layout.
+//
+// JSON Lines (one object per line, in this order):
+//   {"type":"cycle","cycle":0,"size":2,"items":["A","B"]}
+//   {"type":"trade","cycle":0,"item":"A","user":"ALICE","receives":"B","sendsTo":"B","cost":1}
+//   {"type":"nontrade","item":"C","user":"CAROL"}
+//   {"type":"orphan","item":"D","user":null}
+//   {"type":"stats","trades":2,"items":4,"groups":1,"totalCost":2,"sumSquares":4,"groupSizes":[2]}
+// Users are given without their parentheses, or null if none was given.
+// Dummy items never appear.
+//
+// Binary (big-endian, as written by DataOutputStream):
+//   int MAGIC, int VERSION
+//   int n; n times: UTF name, UTF user ("" if none), byte flags (1 = dummy)
+//   int cycles; per cycle: int size; per item: int item, int receives,
+//                                               int sendsTo, long cost
+//   int nontrades; int item each
+//   int orphans; int item each
+//   int trades, int items, int groups, long totalCost, long sumSquares
+// Items are referred to by their position in the first table.
+
+import java.io.*;
+import java.util.*;
+
+public class ResultExporter {
+
+  static final int MAGIC = 0x544d5258; // "TMRX"
+  static final int VERSION = 1;
+
+  private Graph graph;
+  private List<List<Graph.Vertex>> cycles;
+  private int items; // number of real (non-dummy) items
+
+  ResultExporter(Graph graph,List<List<Graph.Vertex>> cycles,int items) {
+    this.graph = graph;
+    this.cycles = cycles;
+    this.items = items;
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  void writeJsonLines(File file) throws IOException {
+    Writer out = new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 1 << 16);
+    try {
+      StringBuilder line = new StringBuilder(256);
+      int trades = 0;
+      long totalCost = 0;
+      long sumSquares = 0;
+
+      for (int c = 0; c < cycles.size(); c++) {
+        List<Graph.Vertex> cycle = cycles.get(c);
+        trades += cycle.size();
+        sumSquares += (long)cycle.size()*cycle.size();
+
+        line.append("{\"type\":\"cycle\",\"cycle\":").append(c)
+            .append(",\"size\":").append(cycle.size()).append(",\"items\":[");
+        for (int i = 0; i < cycle.size(); i++) {
+          if (i > 0) line.append(',');
+          quote(line, graph.nameOf(cycle.get(i)));
+        }
+        line.append("]}\n");
+
+        for (Graph.Vertex v : cycle) {
+          line.append("{\"type\":\"trade\",\"cycle\":").append(c).append(",\"item\":");
+          quote(line, graph.nameOf(v)).append(",\"user\":");
+          quote(line, user(v)).append(",\"receives\":");
+          quote(line, graph.nameOf(v.match.twin)).append(",\"sendsTo\":");
+          quote(line, graph.nameOf(v.twin.match)).append(",\"cost\":").append(v.matchCost).append("}\n");
+          totalCost += v.matchCost;
+        }
+        flush(out, line);
+      }
+
+      for (Graph.Vertex v : graph.RECEIVERS) {
+        if (v.match != v.twin || v.isDummy) continue;
+        line.append("{\"type\":\"nontrade\",\"item\":");
+        quote(line, graph.nameOf(v)).append(",\"user\":");
+        quote(line, user(v)).append("}\n");
+        flush(out, line);
+      }
+      for (Graph.Vertex v : graph.orphans) {
+        if (v.isDummy) continue;
+        line.append("{\"type\":\"orphan\",\"item\":");
+        quote(line, graph.nameOf(v)).append(",\"user\":");
+        quote(line, user(v)).append("}\n");
+        flush(out, line);
+      }
+
+      line.append("{\"type\":\"stats\",\"trades\":").append(trades)
+          .append(",\"items\":").append(items)
+          .append(",\"groups\":").append(cycles.size())
+          .append(",\"totalCost\":").append(totalCost)
+          .append(",\"sumSquares\":").append(sumSquares)
+          .append(",\"groupSizes\":[");
+      int[] sizes = groupSizes();
+      for (int i = 0; i < sizes.length; i++) {
+        if (i > 0) line.append(',');
+        line.append(sizes[i]);
+      }
+      line.append("]}\n");
+      out.append(line);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  // Append s as a JSON string literal (or null)
+  private StringBuilder quote(StringBuilder line,String s) {
+    if (s == null) return line.append("null");
+    line.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char ch = s.charAt(i);
+      if (ch == '"' || ch == '\\') line.append('\\').append(ch);
+      else if (ch < 0x20) line.append(String.format("\\u%04x", (int)ch));
+      else line.append(ch);
+    }
+    return line.append('"');
+  }
+
+  private void flush(Writer out,StringBuilder line) throws IOException {
+    if (line.length() < 1 << 13) return;
+    out.append(line);
+    line.setLength(0);
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  void writeBinary(File file) throws IOException {
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+
+      out.writeInt(graph.receivers.size());
+      for (Graph.Vertex v : graph.receivers) {
+        out.writeUTF(graph.nameOf(v));
+        String user = user(v);
+        out.writeUTF(user == null ? "" : user);
+        out.writeByte(v.isDummy ? 1 : 0);
+      }
+
+      int trades = 0;
+      long totalCost = 0;
+      long sumSquares = 0;
+      out.writeInt(cycles.size());
+      for (List<Graph.Vertex> cycle : cycles) {
+        trades += cycle.size();
+        sumSquares += (long)cycle.size()*cycle.size();
+        out.writeInt(cycle.size());
+        for (Graph.Vertex v : cycle) {
+          out.writeInt(v.id);
+          out.writeInt(v.match.id);
+          out.writeInt(v.twin.match.id);
+          out.writeLong(v.matchCost);
+          totalCost += v.matchCost;
+        }
+      }
+
+      int count = 0;
+      for (Graph.Vertex v : graph.RECEIVERS)
+        if (v.match == v.twin && !v.isDummy) count++;
+      out.writeInt(count);
+      for (Graph.Vertex v : graph.RECEIVERS)
+        if (v.match == v.twin && !v.isDummy) out.writeInt(v.id);
+
+      count = 0;
+      for (Graph.Vertex v : graph.orphans)
+        if (!v.isDummy) count++;
+      out.writeInt(count);
+      for (Graph.Vertex v : graph.orphans)
+        if (!v.isDummy) out.writeInt(v.id);
+
+      out.writeInt(trades);
+      out.writeInt(items);
+      out.writeInt(cycles.size());
+      out.writeLong(totalCost);
+      out.writeLong(sumSquares);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  // The username without its parentheses, or null if there is none
+  private String user(Graph.Vertex v) {
+    String user = graph.userOf(v);
+    if (user == null) return null;
+    return user.substring(1, user.length()-1);
+  }
+
+  // Group sizes, largest first, as in the text report
+  private int[] groupSizes() {
+    int[] sizes = new int[cycles.size()];
+    for (int i = 0; i < sizes.length; i++) sizes[i] = cycles.get(i).size();
+    Arrays.sort(sizes);
+    for (int i = 0, j = sizes.length-1; i < j; i++, j--) {
+      int tmp = sizes[i]; sizes[i] = sizes[j]; sizes[j] = tmp;
+    }
+    return sizes;
+  }
+
+} // end ResultExporter
@@ -0,0 +1,286 @@
+// Solving a trade across several local worker processes
+//
+// Started by "TradeMaximizer --workers=N". After removeImpossibleEdges() the
+// graph falls apart into strongly connected components that share no edges,
+// so each can be solved on its own. The coordinator (the normal
+// TradeMaximizer process) hands the components out to N worker JVMs
+// ("TradeMaximizer --worker", started from the same java and classpath),
+// balancing them by edge count, and sends each worker its components over a
+// pipe in a compact binary form:
+//
+//   int MAGIC, int iterations, boolean verify, boolean fixEdges,
+//   boolean reduce, boolean greedyInit, boolean multiAugment,
+//   boolean parallelShortestPaths, boolean reorder, int threads, int components
+//   per component: long seed, int n, n bytes (1 = dummy),
+//                  per receiver: int edges, per edge: int sender, long cost
+//
+// Receivers and senders are numbered 0..n-1 within their component. Each
+// worker solves every component separately (including the ITERATIONS
+// search, which can be done per component because sums of squares add up)
+// and answers with, per component and receiver, the matched sender and the
+// match cost, followed by the component's reduction and fixing counts:
+//
+//   per component: int n, per receiver: int sender, long cost,
+//                  boolean reduced, if reduced 4 ints (see reductionCounts),
+//                  boolean fixed, if fixed 3 ints (see fixingCounts)
+//
+// The coordinator then puts the matchings together and adds up the counts
+// for the Reductions and Fixing lines of the report. The workers solve with
+// the same settings as a single process would: REDUCE-GRAPH, GREEDY-INIT,
+// MULTI-AUGMENT, PARALLEL-SHORTEST-PATHS (with --threads threads per
+// worker), --reorder, and FIX-EDGES for the iterations. Unless --no-verify
+// is given, every solve is checked as in a single process; a worker whose
+// solve fails the check reports that and stops, and so does the
+// coordinator.
+//
+// Extra JVM options for the workers (such as -Xmx) can be given with
+// --worker-jvm-option=OPTION.
+//
+// Note that --workers can change the result. The trades always have the
+// same (minimum) total cost, but not necessarily the same loops as a solve
+// in one process with the same SEED: each component is solved on its own,
+// with its own shuffle generator (seeded with SEED plus the id of its first
+// item), and with ITERATIONS the best matching is chosen per component rather
+// than for the trade as a whole. For that reason runs with --workers are
+// never stored in or served from the --cache.
+
+import java.io.*;
+import java.util.*;
+
+public class ShardedSolver {
+
+  static final int MAGIC = 0x544d5348; // "TMSH"
+
+  private TradeMaximizer tm;
+  private int workers;
+  private List<String> jvmOptions;
+
+  ShardedSolver(TradeMaximizer tm,int workers,List<String> jvmOptions) {
+    this.tm = tm;
+    this.workers = workers;
+    this.jvmOptions = jvmOptions;
+  }
+
+  //////////////////////////////////////////////////////////////////////
+  // Coordinator
+
+  // Solve the (pruned) graph with the workers and return the trade loops.
+  // Afterwards the graph holds the combined matching, as after findCycles().
+  List<List<Graph.Vertex>> solve() {
+    Graph graph = tm.graph;
+    List<List<Graph.Vertex>> components = graph.components();
+
+    // Number each receiver within its component, and estimate the work for
+    // each component by its number of edges
+    int[] local = new int[graph.receivers.size()];
+    final long[] load = new long[components.size()];
+    Integer[] order = new Integer[components.size()];
+    for (int c = 0; c < components.size(); c++) {
+      List<Graph.Vertex> component = components.get(c);
+      for (int i = 0; i < component.size(); i++) {
+        local[component.get(i).id] = i;
+        load[c] += component.get(i).EDGES.length;
+      }
+      order[c] = c;
+    }
+
+    // Hand out the biggest components first, each to the least loaded worker
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a,Integer b) { return Long.compare(load[b], load[a]); }
+    });
+    int count = Math.max(1, Math.min(workers, components.size()));
+    List< List<Integer> > shards = new ArrayList< List<Integer> >();
+    long[] shardLoad = new long[count];
+    for (int k = 0; k < count; k++) shards.add(new ArrayList<Integer>());
+    for (int c : order) {
+      int best = 0;
+      for (int k = 1; k < count; k++)
+        if (shardLoad[k] < shardLoad[best]) best = k;
+      shards.get(best).add(c);
+      shardLoad[best] += load[c];
+    }
+
+    // Start every worker and send it its components. The workers read all
+    // of their input before solving, so they all run while we wait below.
+    Process[] processes = new Process[count];
+    try {
+      for (int k = 0; k < count; k++) {
+        processes[k] = start();
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(processes[k].getOutputStream(), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(tm.iterations);
+        out.writeBoolean(tm.verify);
+        out.writeBoolean(tm.fixEdges && !tm.reduceGraph);
+        out.writeBoolean(tm.reduceGraph);
+        out.writeBoolean(tm.greedyInit);
+        out.writeBoolean(tm.multiAugment);
+        out.writeBoolean(tm.parallelShortestPaths);
+        out.writeBoolean(tm.reorder);
+        out.writeInt(tm.threads);
+        out.writeInt(shards.get(k).size());
+        for (int c : shards.get(k)) {
+          List<Graph.Vertex> component = components.get(c);
+          out.writeLong(graph.getSeed() + component.get(0).id);
+          out.writeInt(component.size());
+          for (Graph.Vertex v : component) out.writeByte(v.isDummy ? 1 : 0);
+          for (Graph.Vertex v : component) {
+            out.writeInt(v.EDGES.length);
+            for (Graph.Edge e : v.EDGES) {
+              out.writeInt(local[e.sender.id]);
+              out.writeLong(e.cost);
+            }
+          }
+        }
+        out.close();
+      }
+
+      // Collect the matchings, adding up the statistics of the components
+      int[] reductionCounts = null, fixingCounts = null;
+      for (int k = 0; k < count; k++) {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(processes[k].getInputStream(), 1 << 16));
+        for (int c : shards.get(k)) {
+          List<Graph.Vertex> component = components.get(c);
+          if (in.readInt() != component.size())
+            throw new IOException("worker " + (k+1) + " sent a bad matching");
+          for (Graph.Vertex receiver : component) {
+            Graph.Vertex sender = component.get(in.readInt()).twin;
+            receiver.match = sender;
+            sender.match = receiver;
+            receiver.matchCost = in.readLong();
+          }
+          reductionCounts = addCounts(reductionCounts, in, 4);
+          fixingCounts = addCounts(fixingCounts, in, 3);
+        }
+        in.close();
+        if (processes[k].waitFor() != 0)
+          throw new IOException("worker " + (k+1) + " failed");
+      }
+      if (reductionCounts != null) {
+        graph.reductionCounts = reductionCounts;
+        graph.reductionStats = Graph.describeReductions(reductionCounts);
+      }
+      if (fixingCounts != null) {
+        graph.fixingCounts = fixingCounts;
+        graph.fixingStats = Graph.describeFixing(fixingCounts);
+      }
+    }
+    catch (EOFException e) {
+      tm.fatalError("A worker process stopped without sending its results");
+    }
+    catch (IOException e) {
+      tm.fatalError("Sharded solve failed: " + e.getMessage());
+    }
+    catch (InterruptedException e) {
+      tm.fatalError("Interrupted while waiting for workers");
+    }
+    finally {
+      for (Process process : processes)
+        if (process != null) process.destroy();
+    }
+
+    return graph.collectCycles();
+  }
+
+  // Read a worker's optional counts and add them to total, which is null
+  // until some component has sent counts. Returns the new total.
+  private static int[] addCounts(int[] total,DataInputStream in,int length) throws IOException {
+    if (!in.readBoolean()) return total;
+    if (total == null) total = new int[length];
+    for (int i = 0; i < length; i++) total[i] += in.readInt();
+    return total;
+  }
+
+  // Write the counts for addCounts(), which may be null
+  private static void writeCounts(DataOutputStream out,int[] counts) throws IOException {
+    out.writeBoolean(counts != null);
+    if (counts != null)
+      for (int count : counts) out.writeInt(count);
+  }
+
+  // Start a worker JVM from the same installation and classpath as this one
+  private Process start() throws IOException {
+    List<String> command = new ArrayList<String>();
+    command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+    command.addAll(jvmOptions);
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add("TradeMaximizer");
+    command.add("--worker");
+    ProcessBuilder builder = new ProcessBuilder(command);
+    builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+    return builder.start();
+  }
+
+  //////////////////////////////////////////////////////////////////////
+  // Worker
+
+  // Solve every component sent by the coordinator and write back the
+  // matchings, in the same order
+  static void work(InputStream input,OutputStream output) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(input, 1 << 16));
+    if (in.readInt() != MAGIC)
+      throw new IOException("not a sharded solve request");
+    // The settings for solving, with any fatal error going to the
+    // coordinator's error output rather than down the pipe
+    TradeMaximizer tm = new TradeMaximizer();
+    tm.out = System.err;
+    tm.iterations = in.readInt();
+    tm.verify = in.readBoolean();
+    tm.fixEdges = in.readBoolean();
+    tm.reduceGraph = in.readBoolean();
+    tm.greedyInit = in.readBoolean();
+    tm.multiAugment = in.readBoolean();
+    tm.parallelShortestPaths = in.readBoolean();
+    tm.reorder = in.readBoolean();
+    tm.threads = in.readInt();
+    int count = in.readInt();
+
+    // Read everything first, so the coordinator can move on to other workers
+    List<Graph> graphs = new ArrayList<Graph>();
+    List<Graph.Vertex[]> vertices = new ArrayList<Graph.Vertex[]>();
+    for (int c = 0; c < count; c++) {
+      Graph graph = new Graph();
+      graph.setSeed(in.readLong());
+      Graph.Vertex[] receivers = new Graph.Vertex[in.readInt()];
+      for (int i = 0; i < receivers.length; i++)
+        receivers[i] = graph.addAnonymousVertex(in.readByte() != 0);
+      for (Graph.Vertex receiver : receivers) {
+        for (int edges = in.readInt(); edges > 0; edges--) {
+          Graph.Vertex sender = receivers[in.readInt()].twin;
+          graph.addEdge(receiver,sender,in.readLong());
+        }
+      }
+      graph.freeze();
+      graphs.add(graph);
+      vertices.add(receivers);
+    }
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 1 << 16));
+    for (int c = 0; c < count; c++) {
+      Graph graph = graphs.get(c);
+      graph.removeImpossibleEdges();
+      if (tm.reorder) graph.reorder();
+      graph.reduce = tm.reduceGraph;
+      graph.greedyInit = tm.greedyInit;
+      graph.multiAugment = tm.multiAugment;
+      graph.parallelShortestPaths = tm.parallelShortestPaths;
+      graph.verify = tm.verify;
+      graph.threads = tm.threads;
+      tm.bestOfIterations(graph);
+
+      Graph.Vertex[] receivers = vertices.get(c);
+      out.writeInt(receivers.length);
+      for (Graph.Vertex receiver : receivers) {
+        out.writeInt(receiver.match.id);
+        out.writeLong(receiver.matchCost);
+      }
+      writeCounts(out, graph.reductionCounts);
+      writeCounts(out, graph.fixingCounts);
+      graphs.set(c, null); // let the solved graph go
+    }
+    out.flush();
+  }
+
+} // end ShardedSolver
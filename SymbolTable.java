@@ -0,0 +1,113 @@
+// Interned strings for item names and usernames
+//
+// Every distinct string is given a dense id (0, 1, 2, ...) in order of first
+// appearance. The text itself is kept as UTF-8 in one shared byte array, so
+// a table of a million names costs its characters plus a few ints per name
+// rather than a String object (and its char array) per name. Strings are
+// only materialised again, by get(), when they are needed for output.
+//
+// Lookups may run concurrently with each other, but not with intern().
+
+import java.nio.charset.StandardCharsets;
+
+public class SymbolTable {
+
+  public static final int NONE = -1; // id used for "no symbol"
+
+  // Return the id of s, adding it to the table if it is not there yet
+  public int intern(String s) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    int hash = hash(bytes);
+    int slot = find(bytes, hash);
+    if (table[slot] != 0) return table[slot]-1;
+
+    // Add the new symbol
+    int id = size++;
+    if (size+1 > start.length) {
+      start = grow(start, start.length*2);
+      hashes = grow(hashes, hashes.length*2);
+    }
+    while (textLength + bytes.length > text.length) {
+      byte[] bigger = new byte[text.length*2];
+      System.arraycopy(text, 0, bigger, 0, textLength);
+      text = bigger;
+    }
+    System.arraycopy(bytes, 0, text, textLength, bytes.length);
+    textLength += bytes.length;
+    start[id+1] = textLength;
+    hashes[id] = hash;
+    table[slot] = id+1;
+
+    // Keep the hash table at most half full
+    if (2*size > table.length) rehash();
+    return id;
+  }
+
+  // Return the id of s, or NONE if s has never been interned
+  public int lookup(String s) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    int slot = find(bytes, hash(bytes));
+    return table[slot]-1;
+  }
+
+  // Return the string with the given id
+  public String get(int id) {
+    assert id >= 0 && id < size;
+    return new String(text, start[id], start[id+1]-start[id], StandardCharsets.UTF_8);
+  }
+
+  public int size() { return size; }
+
+  //////////////////////////////////////////////////////////////////////
+
+  private byte[] text = new byte[1 << 12]; // the UTF-8 text of all symbols
+  private int textLength = 0;
+  private int[] start = new int[64]; // symbol i occupies text[start[i]..start[i+1])
+  private int[] hashes = new int[64];
+  private int size = 0;
+
+  // Open-addressing hash table holding symbol id + 1, or 0 for a free slot
+  private int[] table = new int[128];
+
+  private static int hash(byte[] bytes) {
+    int h = 0x811c9dc5; // FNV-1a
+    for (byte b : bytes) h = (h ^ (b & 0xff)) * 0x01000193;
+    return h ^ (h >>> 16);
+  }
+
+  // Find the slot holding these bytes, or the free slot where they belong
+  private int find(byte[] bytes,int hash) {
+    int mask = table.length-1;
+    for (int slot = hash & mask;; slot = (slot+1) & mask) {
+      int id = table[slot]-1;
+      if (id < 0) return slot;
+      if (hashes[id] == hash && matches(id, bytes)) return slot;
+    }
+  }
+
+  private boolean matches(int id,byte[] bytes) {
+    int from = start[id];
+    if (start[id+1]-from != bytes.length) return false;
+    for (int i = 0; i < bytes.length; i++) {
+      if (text[from+i] != bytes[i]) return false;
+    }
+    return true;
+  }
+
+  private void rehash() {
+    table = new int[table.length*2];
+    int mask = table.length-1;
+    for (int id = 0; id < size; id++) {
+      int slot = hashes[id] & mask;
+      while (table[slot] != 0) slot = (slot+1) & mask;
+      table[slot] = id+1;
+    }
+  }
+
+  private static int[] grow(int[] a,int length) {
+    int[] b = new int[length];
+    System.arraycopy(a, 0, b, 0, a.length);
+    return b;
+  }
+
+} // end SymbolTable
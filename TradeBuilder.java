@@ -0,0 +1,226 @@
+// Building and solving a trade in code
+//
+//     TradeBuilder trade = new TradeBuilder();
+//     trade.option("LINEAR-PRIORITIES").option("ITERATIONS=20").option("SEED=7");
+//     trade.item("ALICE","BOOK-1").want("BOOK-2").want("BOOK-3").bigStep().want("BOOK-9");
+//     trade.item("BOB","BOOK-2").want("BOOK-1");
+//     TradeBuilder.Result result = trade.solve();
+//
+// An application that keeps its want lists in a database would otherwise
+// have to write them out in the text format, only for readWantLists() to
+// check and split every line of it again. A TradeBuilder takes the same
+// information directly: the options of a "#!" line, the official names, and
+// for each item its user (or null), its name and its wants in order, with big
+// steps where a want file has semicolons and optional explicit costs.
+// solve() hands the lists straight to buildGraph(), so every rule that
+// buildGraph() applies to a want file (unknown and repeated items, dummy
+// items, official names, users wanting their own items, ...) applies here in
+// exactly the same way, and then returns the trades as data rather than as
+// a report.
+//
+// Names follow the conventions of want files: the name of a dummy item
+// begins with '%', and names are not case-sensitive unless the CASE-SENSITIVE
+// option is given. Whatever a want file would list under ERRORS is returned
+// in Result.errors; whatever would stop a want file from being read at all
+// (a bad option or name, a missing username with REQUIRE-USERNAMES, ...)
+// throws a TradeMaximizer.FatalError, as does a failed optimality check.
+
+import java.io.*;
+import java.util.*;
+
+public class TradeBuilder {
+
+  // One item and its want list
+  public static class Item {
+    private TradeBuilder builder;
+    String user; // null if the item has no user
+    String name;
+    List<String> wants = new ArrayList<String>(); // as readWantLists() splits them
+
+    private Item(TradeBuilder builder,String user,String name) {
+      this.builder = builder;
+      this.user = user;
+      this.name = name;
+    }
+
+    // Add a want, ranked after the ones before it
+    public Item want(String name) {
+      builder.checkName(name);
+      wants.add(name);
+      return this;
+    }
+
+    // Add a want with an explicit cost (EXPLICIT-PRIORITIES only)
+    public Item want(String name,long cost) {
+      builder.checkName(name);
+      wants.add(name + "=" + cost);
+      return this;
+    }
+
+    // A big step in rank before the next want, like a semicolon
+    public Item bigStep() {
+      wants.add(";");
+      return this;
+    }
+  }
+
+  // One item passing to its new owner
+  public static class Trade {
+    public String user; // null if the item has no user
+    public String item;
+    public String receivesUser; // the user (or null) and item received in return
+    public String receivesItem;
+    public long cost; // the cost of that want
+  }
+
+  public static class Result {
+    // The trade loops, in the order the report would list them; each trade
+    // receives the item of the next one
+    public List< List<Trade> > loops = new ArrayList< List<Trade> >();
+    // The items (other than dummy items) that do not trade, in input order
+    public List<String> nonTrading = new ArrayList<String>();
+    // What a report would list under ERRORS, in the same (sorted) order
+    public List<String> errors = new ArrayList<String>();
+    public int trades;
+    public long totalCost;
+    public int sumOfSquares;
+  }
+
+  private TradeMaximizer tm = new TradeMaximizer();
+  private List<String> officialNames = null;
+  private List<Item> items = new ArrayList<Item>();
+  private boolean solved = false;
+
+  public TradeBuilder() {
+    // Fatal errors are thrown, so nothing needs to be printed
+    tm.out = new PrintStream(new OutputStream() {
+      public void write(int b) {}
+      public void write(byte[] b,int offset,int length) {}
+    });
+  }
+
+  // Apply an option, as it would appear on a "#!" line (e.g. "ITERATIONS=10")
+  public TradeBuilder option(String option) {
+    tm.applyOption(option.trim().toUpperCase(),0);
+    return this;
+  }
+
+  // The number of threads to use (by default, one per processor)
+  public TradeBuilder threads(int threads) {
+    if (threads < 1) tm.fatalError("Number of threads must be a positive integer");
+    tm.threads = threads;
+    return this;
+  }
+
+  // Declare an official name, as between !BEGIN-OFFICIAL-NAMES and
+  // !END-OFFICIAL-NAMES
+  public TradeBuilder officialName(String name) {
+    checkName(name);
+    if (name.charAt(0) == '%')
+      tm.fatalError("Cannot give official names for dummy items");
+    if (officialNames == null) officialNames = new ArrayList<String>();
+    officialNames.add(name);
+    return this;
+  }
+
+  // Add an item of the given user (or null), whose wants can then be added
+  // to the returned Item in order
+  public Item item(String user,String name) {
+    checkNotSolved();
+    checkName(name);
+    if (user != null && !user.matches("[^()#:;\\s]([^()#:;\\t\\n\\r\\f]*[^()#:;\\s])?"))
+      tm.fatalError("Bad username \"" + user + "\"");
+    Item item = new Item(this,user,name);
+    items.add(item);
+    return item;
+  }
+
+  // Names are single words of a want file, without the characters that
+  // have a meaning there
+  private void checkName(String name) {
+    if (name == null || !name.matches("[^()#:;=\\s]+"))
+      tm.fatalError("Bad item name \"" + name + "\"");
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  // Build the graph and find the best trades, as TradeMaximizer.run() would
+  // for the equivalent want file. A TradeBuilder can only be solved once.
+  public Result solve() {
+    checkNotSolved();
+    solved = true;
+
+    if (officialNames != null) {
+      tm.officialNames = new HashSet<String>();
+      for (String name : officialNames) {
+        if (!tm.caseSensitive) name = name.toUpperCase();
+        if (tm.officialNames.contains(name))
+          tm.fatalError("Official name "+name+"+ already defined");
+        tm.officialNames.add(name);
+      }
+    }
+
+    // The want lists, exactly as readWantLists() would have split them
+    List< String[] > wantLists = new ArrayList< String[] >(items.size());
+    for (Item item : items) {
+      if (item.user == null && tm.requireUsernames)
+        tm.fatalError("Missing username with REQUIRE-USERNAMES selected");
+      if (item.wants.size() > 0 && item.wants.get(0).equals(";"))
+        tm.fatalError("Big step cannot come before the first want of item " + item.name);
+      String[] list = new String[(item.user == null ? 1 : 2) + item.wants.size()];
+      int k = 0;
+      if (item.user != null) list[k++] = "(" + item.user.replace(' ','#') + ")";
+      list[k++] = item.name;
+      for (String want : item.wants) list[k++] = want;
+      if (!tm.caseSensitive)
+        for (int i = 0; i < list.length; i++) list[i] = list[i].toUpperCase();
+      wantLists.add(list);
+    }
+    items = null; // the lists are all that is needed from here on
+
+    tm.buildGraph(wantLists);
+    tm.pruneGraph();
+
+    // Solve as many times as asked, keeping the best matching
+    List< List<Graph.Vertex> > cycles = tm.bestOfIterations(tm.graph);
+    return result(tm.graph,cycles);
+  }
+
+  private void checkNotSolved() {
+    if (solved) tm.fatalError("This trade has already been solved");
+  }
+
+  private Result result(Graph graph,List< List<Graph.Vertex> > cycles) {
+    Result result = new Result();
+    for (List<Graph.Vertex> cycle : cycles) {
+      List<Trade> loop = new ArrayList<Trade>(cycle.size());
+      for (Graph.Vertex v : cycle) {
+        Trade trade = new Trade();
+        trade.user = user(graph,v);
+        trade.item = graph.nameOf(v);
+        trade.receivesUser = user(graph,v.match.twin);
+        trade.receivesItem = graph.nameOf(v.match.twin);
+        trade.cost = v.matchCost;
+        loop.add(trade);
+        result.totalCost += v.matchCost;
+      }
+      result.loops.add(loop);
+      result.trades += cycle.size();
+      result.sumOfSquares += cycle.size()*cycle.size();
+    }
+    for (Graph.Vertex v : graph.receivers) {
+      if (!v.isDummy && (v.match == null || v.match == v.twin))
+        result.nonTrading.add(graph.nameOf(v));
+    }
+    result.errors.addAll(tm.errors);
+    Collections.sort(result.errors);
+    return result;
+  }
+
+  // The user of an item, without the parentheses of the want file
+  private static String user(Graph graph,Graph.Vertex v) {
+    String user = graph.userOf(v);
+    return user == null ? null : user.substring(1, user.length()-1);
+  }
+
+} // end TradeBuilder
@@ -7,27 +7,67 @@
 import java.io.*;
 import java.util.*;
 import java.text.*;
+import java.security.*;
+import java.util.concurrent.*;
 
 public class TradeMaximizer {
-  public static void main(String[] args) { new TradeMaximizer().run(); }
+  public static void main(String[] args) {
+    TradeMaximizer tm = new TradeMaximizer();
+    try {
+      tm.parseArguments(args);
+      if (tm.worker) {
+        ShardedSolver.work(System.in,System.out);
+        return;
+      }
+      if (tm.batchInputs != null)
+        System.exit(new BatchRunner(tm).run());
+      tm.run();
+    }
+    catch (FatalError e) {
+      System.exit(1);
+    }
+    catch (IOException e) {
+      // only a --worker does I/O here; its coordinator reports the failure
+      System.err.println("Worker failed: " + e.getMessage());
+      System.exit(1);
+    }
+  }
 
   final String version = "Version 1.3a";
 
   // This function is executed by main() at startup
   void run() {
-    System.out.println("TradeMaximizer " + version);
+    phaseStart = System.nanoTime();
+    out.println("TradeMaximizer " + version);
 
     // Read in the want options, usernames, and want lists
     List< String[] > wantLists = readWantLists();
     if (wantLists == null) return;
+    endPhase("parse");
+
+    // Work out where the result would be cached, before the lists are changed
+    byte[] cacheKey = null;
+    if (cache != null) {
+      if (workers > 0) cache.status = "skipped (--workers)";
+      else {
+        cacheKey = ResultCache.key(this,wantLists);
+        if (cacheKey == null) cache.status = "skipped (no SEED)";
+      }
+    }
 
     // Display custom options, if they exist
     if (options.size() > 0) {
-      System.out.print("Options:");
-      for (String option : options) System.out.print(" "+option);
-      System.out.println();
+      out.print("Options:");
+      for (String option : options) out.print(" "+option);
+      out.println();
+    }
+    out.println();
+
+    // Make sure the trade will fit before building it
+    if (preflight || capacityReport) {
+      estimate = new CapacityEstimate(wantLists,iterations);
+      if (preflight) preflight();
     }
-    System.out.println();
 
     // Create the graph by parsing the want lists and other input
     buildGraph(wantLists);
@@ -38,75 +78,428 @@ public class TradeMaximizer {
       List<String> missing = new ArrayList<String>(officialNames);
       Collections.sort(missing);
       for (String name : missing) {
-        System.out.println("**** Missing want list for official name " +name);
+        out.println("**** Missing want list for official name " +name);
       }
-      System.out.println();
+      out.println();
     }
     if (showErrors && errors.size() > 0) {
       Collections.sort(errors);
-      System.out.println("ERRORS:");
-      for (String error : errors) System.out.println(error);
-      System.out.println();
+      out.println("ERRORS:");
+      for (String error : errors) out.println(error);
+      out.println();
     }
 
+    endPhase("build");
+
     // Input parsing is completed. Before we start processing, we'll take a
     // timestamp so we can later report the total processing time
     long startTime = System.currentTimeMillis();
 
     // Remove unusable entries and edges from the graph
-    graph.removeImpossibleEdges();
+    long builtEdges = 0;
+    if (capacityReport)
+      for (Graph.Vertex v : graph.RECEIVERS) builtEdges += v.EDGES.length;
+    pruneGraph();
+    endPhase("prune");
+
+    if (sweepSpecs != null) {
+      // Compare several priority settings instead of producing a report
+      new PrioritySweep(this,sweepSpecs).run();
+      if (showElapsedTime)
+        out.println("Elapsed time = " + (System.currentTimeMillis()-startTime) + "ms");
+      out.flush();
+      return;
+    }
 
-    // Perform the actual search
-    List<List<Graph.Vertex>> bestCycles = graph.findCycles();
-    int bestSumSquares = sumOfSquares(bestCycles);
+    List<List<Graph.Vertex>> bestCycles;
+    int bestSumSquares;
+    int firstIteration = 0;
+    boolean cached = cacheKey != null && cache.load(cacheKey,this);
+    Checkpoint checkpoint = resume && !cached ? readCheckpoint() : null;
+    if (cached) {
+      // This trade has been solved before; show the progress it showed then
+      for (String line : progress) out.println(line);
+      graph.restoreMatches();
+      bestCycles = graph.collectCycles();
+      bestSumSquares = sumOfSquares(bestCycles);
+      firstIteration = iterations-1; // no iterations are left to do
+    }
+    else if (workers > 0) {
+      // Let worker processes solve the components, iterations and all
+      bestCycles = new ShardedSolver(this,workers,workerJvmOptions).solve();
+      bestSumSquares = sumOfSquares(bestCycles);
+      firstIteration = iterations-1;
+    }
+    else if (checkpoint != null) {
+      // Pick up the best matching of the interrupted run, and replay its
+      // shuffles so the remaining iterations see the same receiver order.
+      // With FIX-EDGES, the first solve is repeated so that they also see the
+      // same graph.
+      if (fixEdges && !reduceGraph) {
+        graph.solve();
+        checkOptimality();
+        graph.fixEdges();
+      }
+      graph.restoreMatches();
+      bestCycles = graph.collectCycles();
+      bestSumSquares = checkpoint.bestSumSquares;
+      firstIteration = checkpoint.nextIteration;
+      graph.setSeed(checkpoint.seed);
+      for (int i = 0; i < firstIteration; i++) graph.shuffle();
+      if (firstIteration >= iterations-1)
+        out.println("Resuming a run that had already finished all " + iterations + " iterations");
+      else
+        out.println("Resuming at iteration " + (firstIteration+2) + " of " + iterations);
+      // Show what the interrupted run had shown so far
+      progress = checkpoint.progress;
+      for (String line : progress) out.println(line);
+      graph.reductionStats = checkpoint.reductionStats;
+      graph.fixingStats = checkpoint.fixingStats;
+    }
+    else {
+      // Perform the actual search, checking the matching before using it
+      graph.solve();
+      checkOptimality();
+      bestCycles = graph.collectCycles();
+      bestSumSquares = sumOfSquares(bestCycles);
+      // Drop the edges no optimal matching can use before iterating
+      if (fixEdges && !reduceGraph && iterations > 1) graph.fixEdges();
+    }
 
     // Repeat the search for each iteration
     if (iterations > 1) {
-      graph.saveMatches();
-      for (int i = 0; i < iterations-1; i++) {
+      // A checkpoint or cached result has already been loaded as the saved
+      // matching, along with the receiver order its cycles were listed in
+      if (checkpoint == null && !cached) graph.saveMatches();
+      long lastCheckpointTime = System.currentTimeMillis();
+      for (int i = firstIteration; i < iterations-1; i++) {
         // Shuffle the receiver order around
         graph.shuffle();
-        // Perform the actual search again
-        List<List<Graph.Vertex>> cycles = graph.findCycles();
+        // Perform the actual search again, judging it without collecting
+        // its cycles
+        graph.solve();
+        checkOptimality();
 
         // Determine if we have a better solution this time
-        int sumSquares = sumOfSquares(cycles);
+        int sumSquares = graph.sumOfSquares();
         if (sumSquares < bestSumSquares) {
           // Save off info on the new find
           bestSumSquares = sumSquares;
-          bestCycles = cycles;
           graph.saveMatches();
           // Prepare some display information for the user
-          int[] groups = new int[cycles.size()];
-          for (int j = 0; j < cycles.size(); j++)
-            groups[j] = cycles.get(j).size();
+          int[] groups = graph.cycleSizes();
           Arrays.sort(groups);
           // Display stats on the new find
-          System.out.print("[ "+sumSquares + " :");
+          StringBuilder line = new StringBuilder("[ " + sumSquares + " :");
           for (int j = groups.length-1; j >= 0; j--)
-            System.out.print(" " + groups[j]);
-          System.out.println(" ]");
+            line.append(" ").append(groups[j]);
+          line.append(" ]");
+          progress.add(line.toString());
+          out.println(line);
+          out.flush(); // let the user follow the progress
+        }
+
+        // Periodically record our progress in case this run is interrupted
+        if (checkpointFile != null &&
+            (System.currentTimeMillis() - lastCheckpointTime >= checkpointInterval*1000L
+             || i == iterations-2)) {
+          writeCheckpoint(i+1, bestSumSquares);
+          lastCheckpointTime = System.currentTimeMillis();
         }
       }
-      System.out.println();
+      out.println();
       // Restore info regarding our best matching solution
       graph.restoreMatches();
+      bestCycles = graph.savedCycles();
     }
     long stopTime = System.currentTimeMillis();
+    endPhase("solve");
+    if (cacheKey != null && !cached) {
+      if (iterations == 1) graph.saveMatches();
+      cache.store(cacheKey,this);
+    }
     displayMatches(bestCycles);
+    exportMatches(bestCycles);
 
     if (showElapsedTime)
-      System.out.println("Elapsed time = " + (stopTime-startTime) + "ms");
+      out.println("Elapsed time = " + (stopTime-startTime) + "ms");
+    if (cache != null)
+      out.println(cache.stats());
+    if (capacityReport)
+      reportCapacity(builtEdges);
+    out.flush();
+    endPhase("report");
+  }
+
+  CapacityEstimate estimate = null;
+
+  // The progress lines shown for the iterations of this run, kept with its
+  // cached result
+  List<String> progress = new ArrayList<String>();
+
+  // Switch to compact mode if the trade is predicted not to fit in the heap.
+  // If it does not look like fitting even then, warn and try anyway, unless
+  // --strict-preflight asks to give up instead.
+  void preflight() {
+    long max = CapacityEstimate.maxHeap();
+    long limit = (long)(max * CapacityEstimate.HEAP_FRACTION);
+    if (compact || estimate.peakBytes(false) <= limit) return;
+    compact = true;
+    if (estimate.peakBytes(true) > limit) {
+      String needs = "This trade needs about " + CapacityEstimate.megabytes(estimate.peakBytes(true))
+                     + " of memory, but only " + CapacityEstimate.megabytes(max) + " is available.";
+      if (strictPreflight)
+        fatalError(needs + " Run java with a larger -Xmx, or leave out --strict-preflight to try anyway.");
+      out.println("**** " + needs + " Trying anyway in compact mode;");
+      out.println("**** run java with a larger -Xmx if it runs out of memory.");
+    }
+    else
+      out.println("**** Predicted peak memory of " + CapacityEstimate.megabytes(estimate.peakBytes(false))
+                  + " is close to the " + CapacityEstimate.megabytes(max) + " heap; using compact mode.");
+    out.println();
+  }
+
+  // Print the estimate next to what actually happened (--capacity-report)
+  void reportCapacity(long builtEdges) {
+    out.println("Estimate    = " + estimate.items + " items, " + estimate.edges + " edges, peak "
+                + CapacityEstimate.megabytes(estimate.peakBytes(compact)) + ", solve "
+                + CapacityEstimate.seconds(estimate.solveMillis()));
+    Long solveNanos = phaseTimes.get("solve");
+    out.println("Actual      = " + graph.receivers.size() + " items, " + builtEdges + " edges ("
+                + graph.RECEIVERS.length + " items, " + graph.components().size()
+                + " components after pruning), peak " + CapacityEstimate.megabytes(CapacityEstimate.peakHeap())
+                + " (with garbage)"
+                + ", solve " + CapacityEstimate.seconds(solveNanos == null ? 0 : solveNanos/1000000)
+                + (compact ? " (compact mode)" : ""));
+  }
+
+  // Nanoseconds spent in each phase of the last run(), in order
+  Map<String,Long> phaseTimes = new LinkedHashMap<String,Long>();
+  private long phaseStart;
+
+  private void endPhase(String name) {
+    long now = System.nanoTime();
+    phaseTimes.put(name, now - phaseStart);
+    phaseStart = now;
+  }
+
+  // Remove unusable entries and edges from the built graph, and hand it the
+  // solver settings
+  void pruneGraph() {
+    graph.removeImpossibleEdges();
+    if (contractDummies) graph.contractDummies();
+    if (reorder) graph.reorder();
+    graph.reduce = reduceGraph;
+    graph.greedyInit = greedyInit;
+    graph.parallelShortestPaths = parallelShortestPaths;
+    graph.multiAugment = multiAugment;
+    graph.verify = verify;
+    graph.threads = threads;
+  }
+
+  // Give up if the last solve failed its optimality check. That can only be
+  // a bug in the solver, so no report is better than a wrong one.
+  void checkOptimality() {
+    checkOptimality(graph);
+  }
+  void checkOptimality(Graph graph) {
+    if (graph.violation != null)
+      fatalError("Solver result failed its optimality check: " + graph.violation);
+  }
+
+  // Solve the graph ITERATIONS times, keeping the matching with the smallest
+  // sum of squares, as run() does but without showing any progress. Every
+  // solve is checked, and FIX-EDGES applied, as in run(). Returns the best
+  // cycles, with the graph holding the corresponding matching.
+  List<List<Graph.Vertex>> bestOfIterations(Graph graph) {
+    graph.solve();
+    checkOptimality(graph);
+    List<List<Graph.Vertex>> bestCycles = graph.collectCycles();
+    int bestSumSquares = sumOfSquares(bestCycles);
+    if (iterations > 1) {
+      if (fixEdges && !graph.reduce) graph.fixEdges();
+      graph.saveMatches();
+      for (int i = 0; i < iterations-1; i++) {
+        graph.shuffle();
+        graph.solve();
+        checkOptimality(graph);
+        int sumSquares = graph.sumOfSquares();
+        if (sumSquares < bestSumSquares) {
+          bestSumSquares = sumSquares;
+          graph.saveMatches();
+        }
+      }
+      graph.restoreMatches();
+      bestCycles = graph.savedCycles();
+    }
+    return bestCycles;
   }
 
   // Find the sum of the squared cycle (loop) sizes. Used in determining
   // which solution has the largest loops.
-  int sumOfSquares(List<List<Graph.Vertex>> cycles) {
+  static int sumOfSquares(List<List<Graph.Vertex>> cycles) {
     int sum = 0;
     for (List<Graph.Vertex> cycle : cycles) sum += cycle.size()*cycle.size();
     return sum;
   }
 
+  //////////////////////////////////////////////////////////////////////
+
+  // The want lists are read from this stream
+  InputStream input = System.in;
+
+  // All regular output goes through this stream. It is buffered heavily, so
+  // it must be flushed before the program finishes or waits on something.
+  PrintStream out = new PrintStream(
+      new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+
+  // Command-line settings. Unlike the #! options, these describe how this
+  // particular run is carried out rather than the trade itself.
+  File checkpointFile = null;
+  int checkpointInterval = 60; // seconds between checkpoints
+  boolean resume = false;
+  File exportJsonLines = null;
+  File exportBinary = null;
+  List<File> batchInputs = null; // files and directories to solve with --batch
+  File outputDir = null; // where --batch writes reports (default: next to the input)
+  int threads = Runtime.getRuntime().availableProcessors();
+  List<String> sweepSpecs = null; // settings to compare with --sweep; each
+                                  // variant solved at once holds a copy of the
+                                  // graph (see PrioritySweep)
+  ResultCache cache = null;
+  int workers = 0; // number of worker processes for --workers, 0 for none;
+                   // can change the loops chosen (see ShardedSolver)
+  List<String> workerJvmOptions = new ArrayList<String>();
+  boolean worker = false; // run as a worker for another TradeMaximizer
+  File cacheDir = null;
+  long cacheSize = 256L << 20; // bytes
+  boolean noCache = false;
+  boolean preflight = true; // check that the trade will fit before building it
+  boolean strictPreflight = false; // give up if it is predicted not to fit at all
+  boolean compact = false;  // build the graph in compact mode; see CapacityEstimate
+  boolean capacityReport = false;
+  boolean verify = true; // check every solve with Graph.verifyOptimality()
+  boolean reorder = false; // lay the graph out for locality; see Graph.reorder()
+
+  void parseArguments(String[] args) {
+    for (String arg : args) {
+      if (arg.startsWith("--checkpoint="))
+        checkpointFile = new File(arg.substring(13));
+      else if (arg.startsWith("--checkpoint-interval=")) {
+        String num = arg.substring(22);
+        if (!num.matches("\\d+"))
+          fatalError("--checkpoint-interval argument must be a non-negative integer");
+        checkpointInterval = Integer.parseInt(num);
+      }
+      else if (arg.equals("--resume"))
+        resume = true;
+      else if (arg.startsWith("--export-jsonl="))
+        exportJsonLines = new File(arg.substring(15));
+      else if (arg.startsWith("--export-binary="))
+        exportBinary = new File(arg.substring(16));
+      else if (arg.equals("--sweep")) {
+        if (sweepSpecs == null) sweepSpecs = new ArrayList<String>();
+      }
+      else if (arg.startsWith("--sweep=")) {
+        if (sweepSpecs == null) sweepSpecs = new ArrayList<String>();
+        sweepSpecs.add(arg.substring(8));
+      }
+      else if (arg.startsWith("--cache="))
+        cacheDir = new File(arg.substring(8));
+      else if (arg.startsWith("--cache-size=")) {
+        String num = arg.substring(13);
+        if (!num.matches("[1-9]\\d*"))
+          fatalError("--cache-size argument must be a positive number of megabytes");
+        cacheSize = Long.parseLong(num) << 20;
+      }
+      else if (arg.equals("--no-cache"))
+        noCache = true;
+      else if (arg.startsWith("--workers=")) {
+        String num = arg.substring(10);
+        if (!num.matches("[1-9]\\d*"))
+          fatalError("--workers argument must be a positive integer");
+        workers = Integer.parseInt(num);
+      }
+      else if (arg.startsWith("--worker-jvm-option="))
+        workerJvmOptions.add(arg.substring(20));
+      else if (arg.equals("--worker"))
+        worker = true;
+      else if (arg.equals("--batch"))
+        batchInputs = new ArrayList<File>();
+      else if (arg.startsWith("--output-dir="))
+        outputDir = new File(arg.substring(13));
+      else if (arg.equals("--compact"))
+        compact = true;
+      else if (arg.equals("--no-preflight"))
+        preflight = false;
+      else if (arg.equals("--strict-preflight"))
+        strictPreflight = true;
+      else if (arg.equals("--capacity-report"))
+        capacityReport = true;
+      else if (arg.equals("--no-verify"))
+        verify = false;
+      else if (arg.equals("--reorder"))
+        reorder = true;
+      else if (arg.startsWith("--threads=")) {
+        String num = arg.substring(10);
+        if (!num.matches("[1-9]\\d*"))
+          fatalError("--threads argument must be a positive integer");
+        threads = Integer.parseInt(num);
+      }
+      else if (batchInputs != null && !arg.startsWith("--"))
+        batchInputs.add(new File(arg));
+      else
+        fatalError("Unknown command-line argument \""+arg+"\"");
+    }
+    if (resume && checkpointFile == null)
+      fatalError("--resume requires --checkpoint=FILE");
+    if (cacheDir != null && !noCache)
+      cache = new ResultCache(cacheDir,cacheSize);
+    if (workers > 0 && (checkpointFile != null || sweepSpecs != null))
+      fatalError("--workers cannot be combined with --checkpoint or --sweep");
+    if (sweepSpecs != null && (checkpointFile != null || batchInputs != null))
+      fatalError("--sweep cannot be combined with --checkpoint or --batch");
+    if (batchInputs != null) {
+      if (batchInputs.isEmpty())
+        fatalError("--batch requires at least one input file or directory");
+      if (checkpointFile != null || exportJsonLines != null || exportBinary != null)
+        fatalError("--batch cannot be combined with --checkpoint or --export-*");
+    }
+  }
+
+  // Load the checkpoint named on the command line into the graph's saved
+  // matching. A missing checkpoint file simply means starting from scratch.
+  Checkpoint readCheckpoint() {
+    if (!checkpointFile.exists()) return null;
+    try {
+      return Checkpoint.read(checkpointFile, graph, inputHash);
+    }
+    catch (IOException e) {
+      fatalError(e.getMessage());
+      return null;
+    }
+  }
+
+  void writeCheckpoint(int nextIteration,int bestSumSquares) {
+    Checkpoint checkpoint = new Checkpoint();
+    checkpoint.inputHash = inputHash;
+    checkpoint.seed = graph.getSeed();
+    checkpoint.nextIteration = nextIteration;
+    checkpoint.bestSumSquares = bestSumSquares;
+    checkpoint.progress = progress;
+    checkpoint.reductionStats = graph.reductionStats;
+    checkpoint.fixingStats = graph.fixingStats;
+    try {
+      checkpoint.write(checkpointFile, graph);
+    }
+    catch (IOException e) {
+      // Losing a checkpoint is not worth losing the run over
+      System.err.println("Warning: could not write checkpoint: " + e.getMessage());
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
   boolean caseSensitive = false;
   boolean requireColons = false;
   boolean requireUsernames = false;
@@ -120,6 +513,12 @@ public class TradeMaximizer {
   boolean sortByItem = false;
   boolean allowDummies = false;
   boolean showElapsedTime = false;
+  boolean contractDummies = false;
+  boolean reduceGraph = false;
+  boolean greedyInit = false;
+  boolean parallelShortestPaths = false;
+  boolean multiAugment = false;
+  boolean fixEdges = false;
 
   static final int NO_PRIORITIES = 0;
   static final int LINEAR_PRIORITIES = 1;
@@ -140,16 +539,26 @@ public class TradeMaximizer {
   List<String> options = new ArrayList<String>();
   HashSet<String> officialNames = null;
   List<String> usedNames = new ArrayList<String>();
+  byte[] inputHash; // digest of the raw input, used to validate checkpoints
 
   List<String[]> readWantLists() {
+    PipelinedReader in = null;
     try {
-      BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+      // The input may be gzip-compressed (see CompressedInput), and is read
+      // and decoded on other threads if there are any (see PipelinedReader)
+      in = new PipelinedReader(input,threads);
       List<String[]> wantLists = new ArrayList<String[]>();
       boolean readingOfficialNames = false;
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
 
       for (int lineNumber = 1;;lineNumber++) {
         String line = in.readLine();
-        if (line == null) return wantLists;
+        if (line == null) {
+          inputHash = digest.digest();
+          return wantLists;
+        }
+        digest.update(line.getBytes("UTF-8"));
+        digest.update((byte)'\n');
 
         line = line.trim();
         if (line.length() == 0) continue; // skip blank link
@@ -161,76 +570,7 @@ public class TradeMaximizer {
           if (officialNames != null)
             fatalError("Options (#!...) cannot be declared after official names", lineNumber);
           for (String option : line.toUpperCase().substring(2).trim().split("\\s+")) {
-            if (option.equals("CASE-SENSITIVE"))
-              caseSensitive = true;
-            else if (option.equals("REQUIRE-COLONS"))
-              requireColons = true;
-            else if (option.equals("REQUIRE-USERNAMES"))
-              requireUsernames = true;
-            else if (option.equals("HIDE-ERRORS"))
-              showErrors = false;
-            else if (option.equals("HIDE-REPEATS"))
-              showRepeats = false;
-            else if (option.equals("HIDE-LOOPS"))
-              showLoops = false;
-            else if (option.equals("HIDE-SUMMARY"))
-              showSummary = false;
-            else if (option.equals("HIDE-NONTRADES"))
-              showNonTrades = false;
-            else if (option.equals("HIDE-STATS"))
-              showStats = false;
-            else if (option.equals("SHOW-MISSING"))
-              showMissing = true;
-            else if (option.equals("SORT-BY-ITEM"))
-              sortByItem = true;
-            else if (option.equals("ALLOW-DUMMIES"))
-              allowDummies = true;
-            else if (option.equals("SHOW-ELAPSED-TIME"))
-              showElapsedTime = true;
-            else if (option.equals("LINEAR-PRIORITIES"))
-              priorityScheme = LINEAR_PRIORITIES;
-            else if (option.equals("TRIANGLE-PRIORITIES"))
-              priorityScheme = TRIANGLE_PRIORITIES;
-            else if (option.equals("SQUARE-PRIORITIES"))
-              priorityScheme = SQUARE_PRIORITIES;
-            else if (option.equals("SCALED-PRIORITIES"))
-              priorityScheme = SCALED_PRIORITIES;
-            else if (option.equals("EXPLICIT-PRIORITIES"))
-              priorityScheme = EXPLICIT_PRIORITIES;
-            else if (option.startsWith("SMALL-STEP=")) {
-              String num = option.substring(11);
-              if (!num.matches("\\d+"))
-                fatalError("SMALL-STEP argument must be a non-negative integer",lineNumber);
-              smallStep = Integer.parseInt(num);
-            }
-            else if (option.startsWith("BIG-STEP=")) {
-              String num = option.substring(9);
-              if (!num.matches("\\d+"))
-                fatalError("BIG-STEP argument must be a non-negative integer",lineNumber);
-              bigStep = Integer.parseInt(num);
-            }
-            else if (option.startsWith("NONTRADE-COST=")) {
-              String num = option.substring(14);
-              if (!num.matches("[1-9]\\d*"))
-                fatalError("NONTRADE-COST argument must be a positive integer",lineNumber);
-              nonTradeCost = Long.parseLong(num);
-            }
-            else if (option.startsWith("ITERATIONS=")) {
-              String num = option.substring(11);
-              if (!num.matches("[1-9]\\d*"))
-                fatalError("ITERATIONS argument must be a positive integer",lineNumber);
-              iterations = Integer.parseInt(num);
-            }
-            else if (option.startsWith("SEED=")) {
-              String num = option.substring(5);
-              if (!num.matches("[1-9]\\d*"))
-                fatalError("SEED argument must be a positive integer",lineNumber);
-              graph.setSeed(Long.parseLong(num));
-            }
-            else
-              fatalError("Unknown option \""+option+"\"",lineNumber);
-
-            options.add(option);
+            applyOption(option,lineNumber);
           }
           continue;
         }
@@ -340,19 +680,120 @@ public class TradeMaximizer {
         wantLists.add(line.trim().split("\\s+"));
       }
     }
+    catch(FatalError e) {
+      throw e;
+    }
     catch(Exception e) {
       fatalError(e.getMessage());
       return null;
     }
+    finally {
+      if (in != null) in.close();
+    }
+  }
+
+  // Apply one option of a "#!" line (or of a TradeBuilder), which has been
+  // converted to upper case
+  void applyOption(String option,int lineNumber) {
+    if (option.equals("CASE-SENSITIVE"))
+      caseSensitive = true;
+    else if (option.equals("REQUIRE-COLONS"))
+      requireColons = true;
+    else if (option.equals("REQUIRE-USERNAMES"))
+      requireUsernames = true;
+    else if (option.equals("HIDE-ERRORS"))
+      showErrors = false;
+    else if (option.equals("HIDE-REPEATS"))
+      showRepeats = false;
+    else if (option.equals("HIDE-LOOPS"))
+      showLoops = false;
+    else if (option.equals("HIDE-SUMMARY"))
+      showSummary = false;
+    else if (option.equals("HIDE-NONTRADES"))
+      showNonTrades = false;
+    else if (option.equals("HIDE-STATS"))
+      showStats = false;
+    else if (option.equals("SHOW-MISSING"))
+      showMissing = true;
+    else if (option.equals("SORT-BY-ITEM"))
+      sortByItem = true;
+    else if (option.equals("ALLOW-DUMMIES"))
+      allowDummies = true;
+    else if (option.equals("SHOW-ELAPSED-TIME"))
+      showElapsedTime = true;
+    else if (option.equals("CONTRACT-DUMMIES"))
+      contractDummies = true;
+    else if (option.equals("REDUCE-GRAPH"))
+      reduceGraph = true;
+    else if (option.equals("GREEDY-INIT"))
+      greedyInit = true;
+    else if (option.equals("PARALLEL-SHORTEST-PATHS"))
+      parallelShortestPaths = true;
+    else if (option.equals("MULTI-AUGMENT"))
+      multiAugment = true;
+    else if (option.equals("FIX-EDGES"))
+      fixEdges = true;
+    else if (option.equals("LINEAR-PRIORITIES"))
+      priorityScheme = LINEAR_PRIORITIES;
+    else if (option.equals("TRIANGLE-PRIORITIES"))
+      priorityScheme = TRIANGLE_PRIORITIES;
+    else if (option.equals("SQUARE-PRIORITIES"))
+      priorityScheme = SQUARE_PRIORITIES;
+    else if (option.equals("SCALED-PRIORITIES"))
+      priorityScheme = SCALED_PRIORITIES;
+    else if (option.equals("EXPLICIT-PRIORITIES"))
+      priorityScheme = EXPLICIT_PRIORITIES;
+    else if (option.startsWith("SMALL-STEP=")) {
+      String num = option.substring(11);
+      if (!num.matches("\\d+"))
+        fatalError("SMALL-STEP argument must be a non-negative integer",lineNumber);
+      smallStep = Integer.parseInt(num);
+    }
+    else if (option.startsWith("BIG-STEP=")) {
+      String num = option.substring(9);
+      if (!num.matches("\\d+"))
+        fatalError("BIG-STEP argument must be a non-negative integer",lineNumber);
+      bigStep = Integer.parseInt(num);
+    }
+    else if (option.startsWith("NONTRADE-COST=")) {
+      String num = option.substring(14);
+      if (!num.matches("[1-9]\\d*"))
+        fatalError("NONTRADE-COST argument must be a positive integer",lineNumber);
+      nonTradeCost = Long.parseLong(num);
+    }
+    else if (option.startsWith("ITERATIONS=")) {
+      String num = option.substring(11);
+      if (!num.matches("[1-9]\\d*"))
+        fatalError("ITERATIONS argument must be a positive integer",lineNumber);
+      iterations = Integer.parseInt(num);
+    }
+    else if (option.startsWith("SEED=")) {
+      String num = option.substring(5);
+      if (!num.matches("[1-9]\\d*"))
+        fatalError("SEED argument must be a positive integer",lineNumber);
+      graph.setSeed(Long.parseLong(num));
+    }
+    else
+      fatalError("Unknown option \""+option+"\"",lineNumber);
+
+    options.add(option);
+  }
+
+  // Thrown by fatalError() once the message has been written. main() turns
+  // it into a non-zero exit status; a batch run just marks the input failed.
+  static class FatalError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    FatalError(String msg) { super(msg); }
   }
 
   void fatalError(String msg) {
-    System.out.println();
-    System.out.println("FATAL ERROR: " + msg);
-    System.exit(1);
+    out.println();
+    out.println("FATAL ERROR: " + msg);
+    out.flush();
+    throw new FatalError(msg);
   }
   void fatalError(String msg,int lineNumber) {
-    fatalError(msg + " (line " + lineNumber + ")");
+    fatalError(lineNumber > 0 ? msg + " (line " + lineNumber + ")" : msg);
   }
 
   //////////////////////////////////////////////////////////////////////
@@ -378,6 +819,7 @@ public class TradeMaximizer {
   void buildGraph(List< String[] > wantLists) {
 
     HashMap< String,Integer > unknowns = new HashMap< String,Integer >();
+    Graph.Vertex[] fromVertices = new Graph.Vertex[wantLists.size()];
 
     // create the nodes
     for (int i = 0; i < wantLists.size(); i++) {
@@ -397,17 +839,17 @@ public class TradeMaximizer {
         name = list[0]; // set the current item to be traded to the next string
       }
 
-      // Check whether this item is a dummy item
+      // Check whether this item is a dummy item. A dummy item's name only
+      // needs to be unique for its user, so it is looked up by both.
       boolean isDummy = (name.charAt(0) == '%');
+      boolean perUser = false;
       if (isDummy) {
         if (user == null)
           errors.add("**** Dummy item " + name + " declared without a username.");
         else if (!allowDummies)
           errors.add("**** Dummy items not allowed. ("+name+")");
-        else {
-          name += " for user " + user;
-          list[0] = name;
-        }
+        else
+          perUser = true;
       }
 
       // Check whether the item exists in the list of official item names, if present
@@ -415,7 +857,9 @@ public class TradeMaximizer {
         errors.add("**** Cannot define want list for "+name+" because it is not an official name.  (Usually indicates a typo by the item owner.)");
         wantLists.set(i,null);
       }
-      else if (graph.getVertex(name) != null) {
+      else if (perUser ? graph.getDummyVertex(name,graph.userSymbol(user)) != null
+                       : graph.getVertex(name) != null) {
+        if (perUser) name = dummyName(name,user);
         errors.add("**** Item " + name + " has multiple want lists--ignoring all but first.  (Sometimes the result of an accidental line break in the middle of a want list.)");
         wantLists.set(i, null);
       }
@@ -424,7 +868,9 @@ public class TradeMaximizer {
         if (isDummy) DUMMY_ITEMS++; // keep track of how many offered items are dummy items
 
         // Add sender and receiver vertices (nodes) to the graph
-        Graph.Vertex vertex = graph.addVertex(name,user,isDummy);
+        Graph.Vertex vertex = perUser ? graph.addDummyVertex(name,user)
+                                      : graph.addVertex(name,user,isDummy);
+        fromVertices[i] = vertex;
 
         // Mark this item's name as added to the graph
         if (officialNames != null && officialNames.contains(name))
@@ -435,146 +881,258 @@ public class TradeMaximizer {
       }
     }
 
-    // Create the edges
-    for (String[] list : wantLists) {
-      if (list == null) continue; // skip the duplicate lists
-      String fromName = list[0];
-      Graph.Vertex fromVertex = graph.getVertex(fromName);
+    // Create the edges. Now that every vertex exists, each want list can be
+    // resolved on its own, so big trades spread the lists over several
+    // threads; see resolveWants(). The results are then added to the graph
+    // in list order, exactly as if the lists had been resolved one by one.
+    final List< String[] > lists = wantLists;
+    final Graph.Vertex[] from = fromVertices;
+    final ResolvedWants[] resolved = new ResolvedWants[wantLists.size()];
+    int chunks = wantLists.size() < PARALLEL_EDGES_THRESHOLD ? 1 : Math.min(threads, wantLists.size());
+    if (compact) {
+      // Add each list's edges as soon as they are resolved, and let go of
+      // the parsed list, so the want lists and the finished graph never
+      // have to fit in memory together
+      for (int j = 0; j < lists.size(); j++) {
+        if (lists.get(j) == null) continue;
+        addResolved(resolveWants(lists.get(j),from[j]),unknowns);
+        lists.set(j,null);
+      }
+    }
+    else if (chunks <= 1) {
+      for (int j = 0; j < lists.size(); j++)
+        if (lists.get(j) != null) resolved[j] = resolveWants(lists.get(j),from[j]);
+    }
+    else {
+      ExecutorService pool = Executors.newFixedThreadPool(chunks);
+      List< Future<?> > futures = new ArrayList< Future<?> >();
+      for (int c = 0; c < chunks; c++) {
+        final int first = (int)((long)lists.size()*c/chunks);
+        final int last = (int)((long)lists.size()*(c+1)/chunks);
+        futures.add(pool.submit(new Runnable() {
+          public void run() {
+            for (int j = first; j < last; j++)
+              if (lists.get(j) != null) resolved[j] = resolveWants(lists.get(j),from[j]);
+          }
+        }));
+      }
+      pool.shutdown();
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        }
+        catch (Exception e) {
+          throw new RuntimeException(e.getCause());
+        }
+      }
+    }
+    if (!compact) {
+      for (ResolvedWants r : resolved)
+        if (r != null) addResolved(r,unknowns); // skipping the duplicate lists
+    }
 
-      // Add the "no-trade" edge to itself (from receiver to sender node)
-      graph.addEdge(fromVertex,fromVertex.twin,nonTradeCost);
+    // "Freeze" the graph, declaring that we have finished adding things to it
+    // and readying it for cleanup and analysis
+    graph.compact = compact;
+    graph.freeze();
 
-      // Evaluate each want for this item
-      long rank = 1;
-      for (int i = 1; i < list.length; i++) {
-        String toName = list[i]; // focus on this want
+    // If any unknown items were added as wants, display those to the user now
+    for (Map.Entry< String,Integer > entry : unknowns.entrySet()) {
+      String item = entry.getKey();
+      int occurrences = entry.getValue();
+      String plural = occurrences == 1 ? "" : "s";
+      errors.add("**** Unknown item " + item + " (" + occurrences + " occurrence" + plural + ")");
+    }
 
-        // A single semicolon represents a large step in rank value between
-        // two items
-        if (toName.equals(";")) {
-          rank += bigStep;
-          continue;
-        }
+  } // end buildGraph
 
-        // Perform entry error checking on the current want
-        if (toName.indexOf('=') >= 0) {
-          // Handle explicit priorities (e.g., ThisWant=100)
-          if (priorityScheme != EXPLICIT_PRIORITIES) {
-            errors.add("**** Cannot use '=' annotation in item "+toName+" in want list for item "+fromName+" unless using EXPLICIT_PRIORITIES.");
-            continue;
-          }
-          if (!toName.matches("[^=]+=[0-9]+")) {
-            errors.add("**** Item "+toName+" in want list for item "+fromName+" must have the format 'name=number'.");
-            continue;
-          }
-          String[] parts = toName.split("=");
-          assert(parts.length == 2);
-          long explicitCost = Long.parseLong(parts[1]);
-          if (explicitCost < 1) {
-            errors.add("**** Explicit priority must be positive in item "+toName+" in want list for item "+fromName+".");
-            continue;
-          }
-          rank = explicitCost;
-          toName = parts[0];
-        }
+  // Below this many want lists, buildGraph() resolves the lists on one thread
+  static final int PARALLEL_EDGES_THRESHOLD = 20000;
 
-        // Handle dummy items
-        if (toName.charAt(0) == '%') {
-          // Make sure this item has an associated username if it wants a dummy item
-          if (fromVertex.user == null) {
-            errors.add("**** Dummy item " + toName + " used in want list for item " + fromName + ", which does not have a username.");
-            continue;
-          }
+  // The edges, errors and unknown names found in one want list
+  static class ResolvedWants {
+    List<Graph.Edge> edges = new ArrayList<Graph.Edge>();
+    List<String> errors = new ArrayList<String>();
+    List<String> unknowns = new ArrayList<String>();
+  }
 
-          // Append the username to the dummy item to prevent confusion in cases
-          // where multiple users have dummy items with the same name.
-          toName += " for user " + fromVertex.user;
-        }
+  // Turn the wants of one list into edges, without changing the graph or
+  // anything else shared, so that many lists can be resolved at once
+  ResolvedWants resolveWants(String[] list,Graph.Vertex fromVertex) {
+    ResolvedWants resolved = new ResolvedWants();
+    String fromName = fromVertex.perUser ? graph.nameOf(fromVertex) : list[0];
+
+    // Add the "no-trade" edge to itself (from receiver to sender node)
+    List<Graph.Edge> edges = resolved.edges;
+    edges.add(new Graph.Edge(fromVertex,fromVertex.twin,nonTradeCost));
+
+    // Evaluate each want for this item
+    long rank = 1;
+    // The rank is also kept as a count of small and big steps, so that
+    // PrioritySweep can recompute costs for other step sizes
+    int smallSteps = 0, bigSteps = 0;
+    for (int i = 1; i < list.length; i++) {
+      String toName = list[i]; // focus on this want
+
+      // A single semicolon represents a large step in rank value between
+      // two items
+      if (toName.equals(";")) {
+        rank += bigStep;
+        bigSteps++;
+        continue;
+      }
 
-        Graph.Vertex toVertex = graph.getVertex(toName); // grab the vertex (node) for this want
-        if (toVertex == null) {
-          if (officialNames != null && officialNames.contains(toName)) {
-            // this is an official item whose owner did not submit a want list
-            rank += smallStep;
-          }
-          else {
-            // there is no offical item list; track number of uknown items
-            int occurrences = unknowns.containsKey(toName) ? unknowns.get(toName) : 0;
-            unknowns.put(toName,occurrences + 1);
-          }
+      // Perform entry error checking on the current want
+      if (toName.indexOf('=') >= 0) {
+        // Handle explicit priorities (e.g., ThisWant=100)
+        if (priorityScheme != EXPLICIT_PRIORITIES) {
+          resolved.errors.add("**** Cannot use '=' annotation in item "+toName+" in want list for item "+fromName+" unless using EXPLICIT_PRIORITIES.");
           continue;
         }
-
-        toVertex = toVertex.twin; // adjust to the sending vertex
-        if (toVertex == fromVertex.twin) {
-          errors.add("**** Item " + toName + " appears in its own want list.");
-        }
-        else if (graph.getEdge(fromVertex,toVertex) != null) {
-          if (showRepeats)
-            errors.add("**** Item " + toName + " is repeated in want list for " + fromName + ".");
+        if (!toName.matches("[^=]+=[0-9]+")) {
+          resolved.errors.add("**** Item "+toName+" in want list for item "+fromName+" must have the format 'name=number'.");
+          continue;
         }
-        else if (!toVertex.isDummy &&
-                 fromVertex.user != null &&
-                 fromVertex.user.equals(toVertex.user)) {
-          errors.add("**** Item "+fromVertex.name +" contains item "+toVertex.name+" from the same user ("+fromVertex.user+")");
+        String[] parts = toName.split("=");
+        assert(parts.length == 2);
+        long explicitCost = Long.parseLong(parts[1]);
+        if (explicitCost < 1) {
+          resolved.errors.add("**** Explicit priority must be positive in item "+toName+" in want list for item "+fromName+".");
+          continue;
         }
-        else {
-          long cost = UNIT;
-          switch (priorityScheme) {
-            case LINEAR_PRIORITIES:   cost = rank; break;
-            case TRIANGLE_PRIORITIES: cost = rank*(rank+1)/2; break;
-            case SQUARE_PRIORITIES:   cost = rank*rank; break;
-            case SCALED_PRIORITIES:   cost = rank; break; // assign later
-            case EXPLICIT_PRIORITIES: cost = rank; break;
-          }
+        rank = explicitCost;
+        toName = parts[0];
+      }
 
-          // All edges out of a dummy node have the same cost because
-          // they are usually considered to be the same item for
-          // duplicate protection.
-          if (fromVertex.isDummy) cost = nonTradeCost;
+      // Handle dummy items
+      boolean wantsDummy = (toName.charAt(0) == '%');
+      Graph.Vertex toVertex; // grab the vertex (node) for this want
+      if (wantsDummy) {
+        // Make sure this item has an associated username if it wants a dummy item
+        if (fromVertex.user == SymbolTable.NONE) {
+          resolved.errors.add("**** Dummy item " + toName + " used in want list for item " + fromName + ", which does not have a username.");
+          continue;
+        }
 
-          // Add a connection from the listed item's receiver node to
-          // the wanted item's sender node.
-          graph.addEdge(fromVertex,toVertex,cost);
+        // Look for the dummy item among this user's dummy items, to prevent
+        // confusion in cases where multiple users have dummy items with the
+        // same name.
+        toVertex = graph.getDummyVertex(toName,fromVertex.user);
+      }
+      else
+        toVertex = graph.getVertex(toName);
 
-          // Increase the rank for calculating the priority of the next want
+      if (toVertex == null) {
+        if (wantsDummy) toName = dummyName(toName,graph.userOf(fromVertex));
+        if (officialNames != null && officialNames.contains(toName)) {
+          // this is an official item whose owner did not submit a want list
           rank += smallStep;
+          smallSteps++;
+        }
+        else {
+          // there is no offical item list; track number of uknown items
+          resolved.unknowns.add(toName);
         }
+        continue;
       }
 
-      // Update costs for those priority schemes that need information such as
-      // number of wants
-      if (!fromVertex.isDummy) {
-        switch (priorityScheme) {
-          case SCALED_PRIORITIES:
-            int n = fromVertex.edges.size()-1;
-            for (Graph.Edge edge : fromVertex.edges) {
-              if (edge.sender != fromVertex.twin)
-                edge.cost = 1 + (edge.cost-1)*2520/n;
-            }
-            break;
-        }
+      toVertex = toVertex.twin; // adjust to the sending vertex
+      if (toVertex == fromVertex.twin) {
+        if (wantsDummy) toName = graph.nameOf(toVertex.twin);
+        resolved.errors.add("**** Item " + toName + " appears in its own want list.");
+      }
+      else if (hasEdgeTo(edges,toVertex)) {
+        if (wantsDummy) toName = graph.nameOf(toVertex.twin);
+        if (showRepeats)
+          resolved.errors.add("**** Item " + toName + " is repeated in want list for " + fromName + ".");
+      }
+      else if (!toVertex.isDummy &&
+               fromVertex.user != SymbolTable.NONE &&
+               fromVertex.user == toVertex.user) {
+        resolved.errors.add("**** Item "+graph.nameOf(fromVertex) +" contains item "+graph.nameOf(toVertex)+" from the same user ("+graph.userOf(fromVertex)+")");
+      }
+      else {
+        long cost = rankCost(priorityScheme,rank);
+
+        // All edges out of a dummy node have the same cost because
+        // they are usually considered to be the same item for
+        // duplicate protection.
+        if (fromVertex.isDummy) cost = nonTradeCost;
+
+        // Add a connection from the listed item's receiver node to
+        // the wanted item's sender node.
+        Graph.Edge edge = new Graph.Edge(fromVertex,toVertex,cost);
+        edges.add(edge);
+        edge.smallSteps = smallSteps;
+        edge.bigSteps = bigSteps;
+
+        // Increase the rank for calculating the priority of the next want
+        rank += smallStep;
+        smallSteps++;
       }
     }
 
-    // "Freeze" the graph, declaring that we have finished adding things to it
-    // and readying it for cleanup and analysis
-    graph.freeze();
+    // Update costs for those priority schemes that need information such as
+    // number of wants
+    if (!fromVertex.isDummy) {
+      switch (priorityScheme) {
+        case SCALED_PRIORITIES:
+          int n = edges.size()-1;
+          for (Graph.Edge edge : edges) {
+            if (edge.sender != fromVertex.twin)
+              edge.cost = scaledCost(edge.cost,n);
+          }
+          break;
+      }
+    }
+    return resolved;
+  } // end resolveWants
+
+  // Add the result of resolveWants() to the graph and the error lists
+  private void addResolved(ResolvedWants resolved,Map< String,Integer > unknowns) {
+    for (Graph.Edge edge : resolved.edges) graph.addEdge(edge);
+    errors.addAll(resolved.errors);
+    for (String toName : resolved.unknowns) {
+      int occurrences = unknowns.containsKey(toName) ? unknowns.get(toName) : 0;
+      unknowns.put(toName,occurrences + 1);
+    }
+  }
 
-    // If any unknown items were added as wants, display those to the user now
-    for (Map.Entry< String,Integer > entry : unknowns.entrySet()) {
-      String item = entry.getKey();
-      int occurrences = entry.getValue();
-      String plural = occurrences == 1 ? "" : "s";
-      errors.add("**** Unknown item " + item + " (" + occurrences + " occurrence" + plural + ")");
+  private static boolean hasEdgeTo(List<Graph.Edge> edges,Graph.Vertex sender) {
+    for (Graph.Edge edge : edges) {
+      if (edge.sender == sender) return true;
     }
+    return false;
+  }
 
-  } // end buildGraph
+  // The cost of a want with the given rank under a priority scheme
+  static long rankCost(int priorityScheme,long rank) {
+    switch (priorityScheme) {
+      case LINEAR_PRIORITIES:   return rank;
+      case TRIANGLE_PRIORITIES: return rank*(rank+1)/2;
+      case SQUARE_PRIORITIES:   return rank*rank;
+      case SCALED_PRIORITIES:   return rank; // see scaledCost()
+      case EXPLICIT_PRIORITIES: return rank;
+      default:                  return 1; // UNIT
+    }
+  }
+
+  // SCALED-PRIORITIES spreads the ranks of a want list with n wants over a
+  // fixed range, so that long and short lists are treated alike
+  static long scaledCost(long rank,int n) {
+    return 1 + (rank-1)*2520/n;
+  }
+
+  // The name under which a dummy item is known, e.g. "%DUMMY for user (BOB)"
+  String dummyName(String name,String user) {
+    return name + " for user " + user;
+  }
 
   String show(Graph.Vertex vertex) {
-    if (vertex.user == null || vertex.isDummy) return vertex.name;
-    else if (sortByItem) return vertex.name + " " + vertex.user;
-    else return vertex.user + " " + vertex.name;
+    String name = graph.nameOf(vertex);
+    if (vertex.user == SymbolTable.NONE || vertex.isDummy) return name;
+    else if (sortByItem) return name + " " + graph.userOf(vertex);
+    else return graph.userOf(vertex) + " " + name;
   }
 
   //////////////////////////////////////////////////////////////////////
@@ -584,76 +1142,154 @@ public class TradeMaximizer {
     int numGroups = cycles.size();
     int totalCost = 0;
     int sumOfSquares = 0;
-    List< Integer > groupSizes = new ArrayList< Integer >();
+    int[] groupSizes = new int[numGroups];
 
-    List< String > summary = new ArrayList< String >();
-    List< String > loops = new ArrayList< String >();
+    // Work out each displayed name only once; the summary refers to every
+    // trading item three times
+    shown = new String[graph.receivers.size()];
 
-    for (List<Graph.Vertex> cycle : cycles) {
-      int size = cycle.size();
+    for (int i = 0; i < numGroups; i++) {
+      int size = cycles.get(i).size();
       numTrades += size;
       sumOfSquares += size*size;
-      groupSizes.add(size);
+      groupSizes[i] = size;
+    }
+
+    // Rather than building every line up front, we remember which items
+    // belong in the summary and sort those by their displayed names. Since
+    // every line starts with the padded name of a distinct item, this is the
+    // same order as sorting the finished lines.
+    List< Graph.Vertex > summary = new ArrayList< Graph.Vertex >(numTrades);
+
+    StringBuilder line = new StringBuilder(256);
+    if (showLoops) {
+      out.println("TRADE LOOPS (" + numTrades + " total trades):");
+      out.println();
+    }
+    for (List<Graph.Vertex> cycle : cycles) {
       for (Graph.Vertex v : cycle) {
         assert v.match != v.twin;
-        loops.add(pad(show(v)) + " receives " + show(v.match.twin));
-        summary.add(pad(show(v)) + " receives " + pad(show(v.match.twin)) + " and sends to " + show(v.twin.match));
+        if (showLoops) {
+          pad(line, shown(v)).append(" receives ").append(shown(v.match.twin));
+          endLine(line);
+        }
+        summary.add(v);
         totalCost += v.matchCost;
       }
-      loops.add("");
+      if (showLoops) endLine(line);
     }
     if (showNonTrades) {
       for (Graph.Vertex v : graph.RECEIVERS) {
         if (v.match == v.twin && !v.isDummy)
-          summary.add(pad(show(v)) + "             does not trade");
+          summary.add(v);
       }
       for (Graph.Vertex v : graph.orphans) {
         if (!v.isDummy)
-          summary.add(pad(show(v)) + "             does not trade");
+          summary.add(v);
       }
     }
 
-    if (showLoops) {
-      System.out.println("TRADE LOOPS (" + numTrades + " total trades):");
-      System.out.println();
-      for (String item : loops) System.out.println(item);
-    }
-
     if (showSummary) {
-      Collections.sort(summary);
-      System.out.println("ITEM SUMMARY (" + numTrades + " total trades):");
-      System.out.println();
-      for (String item : summary) System.out.println(item);
-      System.out.println();
+      Collections.sort(summary, new Comparator< Graph.Vertex >() {
+        public int compare(Graph.Vertex a,Graph.Vertex b) {
+          return comparePadded(shown(a), shown(b));
+        }
+      });
+      flushLine(line);
+      out.println("ITEM SUMMARY (" + numTrades + " total trades):");
+      out.println();
+      for (Graph.Vertex v : summary) {
+        pad(line, shown(v));
+        if (v.match == null || v.match == v.twin)
+          line.append("             does not trade");
+        else {
+          line.append(" receives ");
+          pad(line, shown(v.match.twin)).append(" and sends to ").append(shown(v.twin.match));
+        }
+        endLine(line);
+      }
+      endLine(line);
     }
+    flushLine(line);
 
 
-    System.out.print("Num trades  = " + numTrades + " of " + (ITEMS-DUMMY_ITEMS) + " items");
-    if (ITEMS-DUMMY_ITEMS == 0) System.out.println();
-    else System.out.println(new DecimalFormat(" (0.0%)").format(numTrades/(double)(ITEMS-DUMMY_ITEMS)));
+    out.print("Num trades  = " + numTrades + " of " + (ITEMS-DUMMY_ITEMS) + " items");
+    if (ITEMS-DUMMY_ITEMS == 0) out.println();
+    else out.println(new DecimalFormat(" (0.0%)").format(numTrades/(double)(ITEMS-DUMMY_ITEMS)));
 
     if (showStats) {
-      System.out.print("Total cost  = " + totalCost);
-      if (numTrades == 0) System.out.println();
-      else System.out.println(new DecimalFormat(" (avg 0.00)").format(totalCost/(double)numTrades));
-      System.out.println("Num groups  = " + numGroups);
-      System.out.print("Group sizes =");
-      Collections.sort(groupSizes);
-      Collections.reverse(groupSizes);
-      for (int groupSize : groupSizes) System.out.print(" " + groupSize);
-      System.out.println();
-      System.out.println("Sum squares = " + sumOfSquares);
+      out.print("Total cost  = " + totalCost);
+      if (numTrades == 0) out.println();
+      else out.println(new DecimalFormat(" (avg 0.00)").format(totalCost/(double)numTrades));
+      out.println("Num groups  = " + numGroups);
+      out.print("Group sizes =");
+      Arrays.sort(groupSizes);
+      for (int i = numGroups-1; i >= 0; i--) out.print(" " + groupSizes[i]);
+      out.println();
+      out.println("Sum squares = " + sumOfSquares);
+      if (graph.reductionStats != null)
+        out.println("Reductions  = " + graph.reductionStats);
+      if (graph.fixingStats != null)
+        out.println("Fixing      = " + graph.fixingStats);
+
+//      out.println("Orphans     = " + graph.orphans.size());
+    }
+    shown = null;
+  }
+
+  // Displayed names of receivers (by id) during displayMatches()
+  String[] shown;
+  String shown(Graph.Vertex vertex) {
+    String name = shown[vertex.id];
+    if (name == null) shown[vertex.id] = name = show(vertex);
+    return name;
+  }
 
-//      System.out.println("Orphans     = " + graph.orphans.size());
+  // Write the machine-readable result files requested on the command line
+  void exportMatches(List<List<Graph.Vertex>> cycles) {
+    if (exportJsonLines == null && exportBinary == null) return;
+    ResultExporter exporter = new ResultExporter(graph, cycles, ITEMS-DUMMY_ITEMS);
+    try {
+      if (exportJsonLines != null) exporter.writeJsonLines(exportJsonLines);
+      if (exportBinary != null) exporter.writeBinary(exportBinary);
+    }
+    catch (IOException e) {
+      fatalError("Cannot export results: " + e.getMessage());
     }
   }
 
   // Keep track of name widths for formatting purposes
   int width = 1;
   // Pad a name with trailing spaces so they align nicely
-  String pad(String name) {
-    while (name.length() < width) name += " ";
-    return name;
+  StringBuilder pad(StringBuilder line,String name) {
+    line.append(name);
+    for (int n = width - name.length(); n > 0; n -= SPACES.length())
+      line.append(SPACES, 0, Math.min(n, SPACES.length()));
+    return line;
+  }
+  static final String SPACES = "                                                                ";
+
+  // Compare two names as pad() would leave them, without padding them
+  int comparePadded(String a,String b) {
+    int n = Math.max(a.length(), b.length());
+    for (int i = 0; i < n; i++) {
+      char x = i < a.length() ? a.charAt(i) : ' ';
+      char y = i < b.length() ? b.charAt(i) : ' ';
+      if (x != y) return x - y;
+    }
+    return 0;
+  }
+
+  // The report is assembled into a line buffer that is handed to the output
+  // stream in large pieces rather than one println() per line
+  static final String NEWLINE = System.getProperty("line.separator");
+  void endLine(StringBuilder line) {
+    line.append(NEWLINE);
+    if (line.length() >= 1 << 13) flushLine(line);
+  }
+  void flushLine(StringBuilder line) {
+    out.append(line);
+    line.setLength(0);
   }
 
 } // end TradeMaximizer
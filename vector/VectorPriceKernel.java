@@ -0,0 +1,22 @@
+// Vector API version of PriceKernel (see PriceKernel.java for how to build
+// and enable it)
+
+import jdk.incubator.vector.*;
+
+public class VectorPriceKernel extends PriceKernel {
+
+  private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+  void add(long[] into,long[] amounts,int n) {
+    int i = 0;
+    for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+      LongVector a = LongVector.fromArray(SPECIES, into, i);
+      LongVector b = LongVector.fromArray(SPECIES, amounts, i);
+      a.add(b).intoArray(into, i);
+    }
+    for (; i < n; i++) into[i] += amounts[i]; // leftover elements
+  }
+
+  String name() { return "vector" + SPECIES.length(); }
+
+} // end VectorPriceKernel